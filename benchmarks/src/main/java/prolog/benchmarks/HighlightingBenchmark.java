@@ -0,0 +1,133 @@
+package prolog.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import prolog.highlighting.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Замеры производительности всех реализаций {@link Highlighter} без графического интерфейса.
+ * <p>
+ * Для каждого объекта подсветки и размера программы замеряются подсветка всего текста, инкрементальная подсветка
+ * после ввода символа, сообщение при наведении мыши и смена стилей при перемещении курсора.
+ * Режим {@code Throughput} показывает пропускную способность, режим {@code SampleTime} - распределение задержек.
+ * Скорость выделения памяти показывает профилировщик {@code -prof gc}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HighlightingBenchmark {
+    /**
+     * Количество позиций, по которым перебираются позиции мыши и курсора
+     */
+    private static final int POSITIONS = 1024;
+
+    @Param({"none", "lexer", "parser", "semantic"})
+    public String highlighting;
+
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    private Highlighter highlighter;
+
+    /**
+     * Исходный текст программы
+     */
+    private String text;
+
+    /**
+     * Текст программы с символом, введённым в середине имени переменной
+     */
+    private String editedText;
+
+    /**
+     * Позиция введённого символа
+     */
+    private int editPos;
+
+    /**
+     * Текст, для которого подсветка вычислена последней: исходный или изменённый
+     */
+    private boolean edited;
+
+    private int[] positions;
+    private int nextPosition;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        text = PrologCorpus.generate(lines);
+        editPos = text.indexOf("Length", text.length() / 2) + 3;
+        editedText = text.substring(0, editPos) + 'X' + text.substring(editPos);
+
+        positions = new int[POSITIONS];
+        for (int i = 0; i < POSITIONS; i++) {
+            positions[i] = (int) ((long) text.length() * i / POSITIONS);
+        }
+
+        highlighter = createHighlighter(highlighting);
+        highlighter.computeHighlightingFull(text);
+        edited = false;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        highlighter.close();
+    }
+
+    @Benchmark
+    public Object computeHighlightingFull() {
+        edited = false;
+        return highlighter.computeHighlightingFull(text);
+    }
+
+    /**
+     * Поочерёдно вводит и удаляет символ в середине документа, каждый раз вычисляя подсветку инкрементально
+     */
+    @Benchmark
+    public Object computeHighlightingIncremental() {
+        Highlighter.HighlightingResult result;
+        if (edited) {
+            result = highlighter.computeHighlighting(text, new TextChange(editPos, 1, 0));
+        } else {
+            result = highlighter.computeHighlighting(editedText, new TextChange(editPos, 0, 1));
+        }
+        edited = !edited;
+        return result;
+    }
+
+    @Benchmark
+    public void getMessageForPos(Blackhole blackhole) {
+        blackhole.consume(highlighter.getMessageForPos(nextPosition()));
+    }
+
+    @Benchmark
+    public void changeStylesOnCursor(Blackhole blackhole) {
+        blackhole.consume(highlighter.changeStylesOnCursor(nextPosition()));
+    }
+
+    private int nextPosition() {
+        int pos = positions[nextPosition];
+        nextPosition = (nextPosition + 1) % POSITIONS;
+        return pos;
+    }
+
+    private static Highlighter createHighlighter(String name) {
+        switch (name) {
+            case "none":
+                return new NoHighlighting();
+            case "lexer":
+                return new LexerHighlighting();
+            case "parser":
+                return new ParserHighlighting();
+            case "semantic":
+                // Редактор нужен только для действий контекстного меню, которые здесь не вызываются
+                return new SemanticHighlighting(null);
+            default:
+                throw new IllegalArgumentException("Unknown highlighting " + name);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package prolog.benchmarks;
+
+/**
+ * Генератор текстов программ на Прологе заданного размера для замеров подсветки.
+ * <p>
+ * Программа содержит все разделы (domains, predicates, clauses, goal), комментарии, строки, числа,
+ * списки и переменные. Тексты одного размера всегда одинаковы, поэтому результаты замеров сравнимы между запусками.
+ */
+public final class PrologCorpus {
+    /**
+     * Количество строк, которое занимают объявление и правила одного предиката
+     */
+    private static final int LINES_PER_PREDICATE = 6;
+
+    private PrologCorpus() {
+    }
+
+    /**
+     * @param lines Примерное количество строк программы
+     * @return Текст программы
+     */
+    public static String generate(int lines) {
+        int predicates = Math.max(1, lines / LINES_PER_PREDICATE);
+        StringBuilder sb = new StringBuilder(lines * 40);
+        sb.append("domains\n");
+        sb.append("    list = integer*\n");
+        sb.append("    name = symbol\n");
+        sb.append("predicates\n");
+        sb.append("    len(list, integer)\n");
+        for (int i = 0; i < predicates; i++) {
+            sb.append("    pred").append(i).append("(integer, list, name)\n");
+        }
+        sb.append("clauses\n");
+        sb.append("    len([], 0).\n");
+        sb.append("    len([_|Tail], Length) :- len(Tail, TailLength), Length = TailLength + 1.\n");
+        for (int i = 0; i < predicates; i++) {
+            sb.append("    /* Правила предиката pred").append(i).append(" */\n");
+            sb.append("    pred").append(i).append("(0, [], \"empty\") :- !.\n");
+            sb.append("    pred").append(i).append("(Count, [Head|Tail], Name) :-\n");
+            sb.append("        Count > ").append(i % 100).append(", len(Tail, Length),\n");
+            sb.append("        Head = Count * 2 + Length - 1, % комментарий до конца строки\n");
+            if (i > 0) {
+                sb.append("        pred").append(i - 1).append("(Head, Tail, Name).\n");
+            } else {
+                sb.append("        write(\"pred0 \", Name), nl.\n");
+            }
+        }
+        sb.append("goal\n");
+        sb.append("    pred").append(predicates - 1).append("(10, [1, 2, 3], \"goal\").\n");
+        return sb.toString();
+    }
+}
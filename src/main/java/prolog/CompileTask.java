@@ -0,0 +1,134 @@
+package prolog;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import prolog.devices.ProgramOutputDevice;
+import prolog.latency.Phase;
+import ru.prolog.compiler.CompileException;
+import ru.prolog.compiler.PrologCompiler;
+import ru.prolog.etc.exceptions.model.ModelStateException;
+import ru.prolog.model.program.Program;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Компиляция и проверка программы в фоновом потоке.
+ * <p>
+ * Если передан снимок текста, компилируется он, а не сохранённый файл. Компилятор читает программу только из файла,
+ * поэтому снимок записывается в новый временный файл рядом с компилируемым, чтобы подключаемые файлы
+ * находились по тем же относительным путям. Временный файл удаляется после компиляции.
+ * <p>
+ * Сообщения и ошибки каждого этапа выводятся по мере их появления, не дожидаясь окончания компиляции.
+ * Отмена проверяется между этапами: этап, уже начатый компилятором, прервать нельзя,
+ * но его результаты после отмены не выводятся и программа не запускается.
+ */
+public class CompileTask extends Task<Program> {
+    private static final int PHASES = 2;
+
+    private final Path path;
+    private final DocumentSnapshot source;
+    private final String debugFile;
+    private final ProgramOutputDevice output;
+    private final ErrorSelector selectError;
+
+    /**
+     * Выделяет в редакторе участок текста с первой ошибкой. Вызывается в потоке JavaFX.
+     */
+    public interface ErrorSelector {
+        void select(int start, int end);
+    }
+
+    /**
+     * @param path        Компилируемый файл
+     * @param source      Текст программы, если он отличается от сохранённого файла, иначе {@code null}
+     * @param debugFile   Файл отладочного вывода или {@code null}
+     * @param output      Вывод сообщений компиляции
+     * @param selectError Выделяет участок текста с первой ошибкой
+     */
+    public CompileTask(Path path, DocumentSnapshot source, String debugFile,
+                       ProgramOutputDevice output, ErrorSelector selectError) {
+        this.path = path;
+        this.source = source;
+        this.debugFile = debugFile;
+        this.output = output;
+        this.selectError = selectError;
+    }
+
+    /**
+     * @return Проверенная программа, или {@code null} если при компиляции или проверке найдены ошибки
+     */
+    @Override
+    protected Program call() throws IOException {
+        if (source == null) return compile(path);
+        // Каждый запуск пишет в свой файл: отменённая компиляция продолжает работать и удаляет свой файл позже
+        Path absolute = path.toAbsolutePath();
+        Path sourceFile = Files.createTempFile(absolute.getParent(), "." + absolute.getFileName(), ".run");
+        try {
+            try (Writer writer = Files.newBufferedWriter(sourceFile, StandardCharsets.UTF_8)) {
+                source.writeTo(writer);
+            }
+            return compile(sourceFile);
+        } finally {
+            Files.deleteIfExists(sourceFile);
+        }
+    }
+
+    private Program compile(Path file) throws IOException {
+        updateProgress(0, PHASES);
+        PrologCompiler compiler = new PrologCompiler(file.toAbsolutePath().toString(), debugFile);
+        print("Start compiling...");
+        long start = System.nanoTime();
+        Program program = compiler.compileProgram();
+        Phase.COMPILATION.record(start);
+        if (isCancelled()) return null;
+        updateProgress(1, PHASES);
+
+        if (!compiler.getExceptions().isEmpty()) {
+            boolean selected = false;
+            for (CompileException e : compiler.getExceptions()) {
+                print(e.toString());
+                if (!selected && e.getInterval() != null) {
+                    select(e.getInterval().getStart(), e.getInterval().getEnd() + 1);
+                    selected = true;
+                }
+            }
+            return null;
+        }
+
+        print("Compile finished. Validating model...");
+        start = System.nanoTime();
+        Collection<ModelStateException> exceptions = program.exceptions();
+        Phase.VALIDATION.record(start);
+        if (isCancelled()) return null;
+        updateProgress(2, PHASES);
+
+        if (!exceptions.isEmpty()) {
+            boolean selected = false;
+            for (ModelStateException e : exceptions) {
+                print(e.toString());
+                if (!selected && e.getInterval() != null) {
+                    select(e.getInterval().getStart(), e.getInterval().getEnd() + 1);
+                    selected = true;
+                }
+            }
+            return null;
+        }
+        print("Validating complete. Prepare for launch...");
+        return program;
+    }
+
+    private void print(String message) {
+        if (!isCancelled()) output.println(message);
+    }
+
+    private void select(int start, int end) {
+        Platform.runLater(() -> {
+            if (!isCancelled()) selectError.select(start, end);
+        });
+    }
+}
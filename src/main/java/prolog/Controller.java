@@ -1,5 +1,6 @@
 package prolog;
 
+import javafx.animation.PauseTransition;
 import javafx.application.Platform;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
@@ -18,7 +19,7 @@ import javafx.stage.Stage;
 import org.fxmisc.richtext.CodeArea;
 import org.fxmisc.richtext.LineNumberFactory;
 import org.fxmisc.richtext.event.MouseOverTextEvent;
-import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.TwoDimensional;
 import org.fxmisc.wellbehaved.event.EventPattern;
 import org.fxmisc.wellbehaved.event.InputMap;
 import org.fxmisc.wellbehaved.event.Nodes;
@@ -27,23 +28,26 @@ import prolog.devices.ErrorsOutputDevice;
 import prolog.devices.ProgramInputDevice;
 import prolog.devices.ProgramOutputDevice;
 import prolog.highlighting.*;
-import ru.prolog.compiler.CompileException;
-import ru.prolog.compiler.PrologCompiler;
-import ru.prolog.etc.exceptions.model.ModelStateException;
+import prolog.index.ProjectIndexer;
+import prolog.index.SymbolEntry;
+import prolog.index.SymbolResultsWindow;
+import prolog.search.TextSearch;
+import prolog.latency.Phase;
 import ru.prolog.model.program.Program;
 import ru.prolog.runtime.context.program.BaseProgramContextDecorator;
 import ru.prolog.runtime.context.program.ProgramContext;
 
 import java.io.*;
 import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
-import java.util.Collection;
 import java.util.List;
 import java.util.OptionalInt;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,6 +65,11 @@ public class Controller implements Initializable {
     public VBox root;
     public ErrorsOutputDevice errorsOutput;
     public Label caretPos;
+    public Label latencyHud;
+    public Label highlightingStatus;
+    public ProgressBar loadingProgress;
+    public ProgressBar compileProgress;
+    public CheckMenuItem latencyHudMenuItem;
     public MenuItem runMenuItem;
     public MenuItem debugMenuItem;
     public MenuItem stopMenuItem;
@@ -79,28 +88,154 @@ public class Controller implements Initializable {
     private ThreadGroup programThreadGroup;
     private volatile boolean running = false;
     private Service<Boolean> programRunService;
-    private Highlighter highlighter = new LexerHighlighting();
+    /**
+     * Компиляция, выполняемая перед запуском программы, или {@code null}
+     */
+    private CompileTask compileTask;
+    /**
+     * Результаты анализа текста, общие для всех видов подсветки
+     */
+    private final DocumentModel documentModel = new DocumentModel();
+    private Highlighter highlighter = new LexerHighlighting(documentModel);
+    /**
+     * Задержка вычисления подсветки после изменения текста, подбираемая по длительности прошлых вычислений
+     */
+    private final AdaptiveDelay highlightingDelay = new AdaptiveDelay(500);
+    private final HighlightingWorker highlightingWorker = new HighlightingWorker();
+    private final PauseTransition highlightingPause = new PauseTransition();
+    /**
+     * Подсветка по лексемам, используемая при наборе текста, пока выбранная подсветка не укладывается в допустимое время
+     */
+    private LexerHighlighting fallbackHighlighter;
+    /**
+     * Объект подсветки, результат которого применён к редактору последним.
+     * Используется для всплывающих сообщений и контекстного меню.
+     */
+    private Highlighter displayedHighlighter = highlighter;
+    private final HighlightingBudget highlightingBudget = new HighlightingBudget();
+    /**
+     * Пауза в наборе текста, после которой выбранная подсветка вычисляется вместо подсветки по лексемам
+     */
+    private final PauseTransition idleHighlightingPause = new PauseTransition(javafx.util.Duration.millis(1500));
+    private ViewportHighlighting viewportHighlighting;
+    /**
+     * Применение последней разметки было прервано изменением текста, следующая подсветка должна охватить весь текст
+     */
+    private boolean highlightingIncomplete;
+    /**
+     * Ожидается подсветка всего текста большого документа
+     */
+    private boolean fullHighlightingPending;
+    /**
+     * Изменения текста, накопленные с момента постановки в очередь последнего вычисления подсветки
+     */
+    private TextChange pendingChange;
+    /**
+     * Момент первого изменения текста, для которого ещё не применена подсветка, или {@code 0}
+     */
+    private long firstUnhighlightedEditNanos;
+    /**
+     * Номер версии текста, увеличивается при каждом изменении
+     */
+    private long textVersion;
+    private final FileSaver fileSaver = new FileSaver();
+    /**
+     * Журнал несохранённых изменений текущего файла
+     */
+    private final EditJournal editJournal = new EditJournal();
     private Subscription updateHighlightSubscription;
     private volatile boolean textChanged;
     private Stage searchWindow;
+    /**
+     * Загрузка файла, выполняющаяся в фоновом потоке, или {@code null}
+     */
+    private FileLoader fileLoader;
+    private SearchDialogController searchDialogController;
+    /**
+     * Поиск всех совпадений, выделяемых поверх подсветки
+     */
+    private TextSearch textSearch;
+    /**
+     * Индекс имён во всех файлах рабочего каталога и подключённых в них файлах
+     */
+    private final ProjectIndexer projectIndexer = new ProjectIndexer(Paths.get(""));
+    private SymbolResultsWindow symbolResultsWindow;
 
     public File getFile() {
-        if (!fileSaved) saveFile();
-        if (!fileSaved) return null;
-        if (file == null) requestFileName();
-        if (file == null) return null;
         return file;
     }
 
+    /**
+     * Открывает файл с текстом, восстановленным по журналу несохранённых изменений
+     *
+     * @param f    Файл
+     * @param text Восстановленный текст
+     */
+    public void restoreFile(File f, String text) {
+        if (fileLoader != null) fileLoader.cancel();
+        file = f;
+        codeArea.replaceText(text);
+        codeArea.getUndoManager().forgetHistory();
+        updateHighlighting();
+        setFileSaved(false);
+        editJournal.start(f.toPath(), DocumentSnapshot.of(codeArea));
+    }
+
     public void setFile(File file) {
-        this.file = file;
-        try {
-            byte[] encoded = Files.readAllBytes(file.toPath());
-            codeArea.replaceText(new String(encoded, StandardCharsets.UTF_8));
-            fileSaved = true;
-        } catch (IOException e) {
-            alertReadError(e);
-        }
+        openFile(file, () -> {
+        });
+    }
+
+    /**
+     * Загружает файл в редактор в фоновом потоке. Пока файл загружается, редактор недоступен для изменения,
+     * а подсветка не вычисляется.
+     *
+     * @param f        Файл
+     * @param onLoaded Вызывается в потоке JavaFX после загрузки всего файла
+     */
+    private void openFile(File f, Runnable onLoaded) {
+        if (fileLoader != null) fileLoader.cancel();
+        editJournal.stop();
+        FileLoader loader = new FileLoader(f.toPath(), codeArea::appendText);
+        fileLoader = loader;
+        file = f;
+        highlightingPause.stop();
+        codeArea.clear();
+        codeArea.setEditable(false);
+        loadingProgress.progressProperty().bind(loader.progressProperty());
+        loadingProgress.setVisible(true);
+        loader.setOnSucceeded(event -> {
+            if (finishLoading(loader)) onLoaded.run();
+        });
+        loader.setOnFailed(event -> {
+            if (!finishLoading(loader)) return;
+            Throwable exception = loader.getException();
+            alertReadError(exception instanceof IOException ? (IOException) exception : new IOException(exception));
+        });
+        loader.setOnCancelled(event -> finishLoading(loader));
+        Thread thread = new Thread(loader, "Loading");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Возвращает редактор в обычное состояние после загрузки файла
+     *
+     * @return {@code false} если загрузка была заменена загрузкой другого файла
+     */
+    private boolean finishLoading(FileLoader loader) {
+        if (fileLoader != loader) return false;
+        fileLoader = null;
+        loadingProgress.progressProperty().unbind();
+        loadingProgress.setVisible(false);
+        codeArea.setEditable(true);
+        // Загрузка по частям не должна отменяться пользователем по частям
+        codeArea.getUndoManager().forgetHistory();
+        codeArea.moveTo(0);
+        updateHighlighting();
+        setFileSaved(true);
+        editJournal.start(file.toPath(), null);
+        return true;
     }
 
     public boolean isFileSaved() {
@@ -135,48 +270,56 @@ public class Controller implements Initializable {
 
     private void run(String debugFile) {
         if (running) return;
-        File f = getFile();
-        if (f == null) return;
-        PrologCompiler compiler = new PrologCompiler(f.getAbsolutePath(), debugFile);
-        Program program;
-        errorsOutput.clear();
-        programOutput.clear();
-
-        errorsOutput.println("Start compiling...");
-        try {
-            program = compiler.compileProgram();
-        } catch (IOException e) {
-            alertReadError(e);
-            return;
-        }
-
-        if (!compiler.getExceptions().isEmpty()) {
-            for (CompileException e : compiler.getExceptions()) {
-                errorsOutput.println(e.toString());
-            }
-            for (CompileException e : compiler.getExceptions()) {
-                if (e.getInterval() == null) continue;
-                codeArea.selectRange(e.getInterval().getStart(), e.getInterval().getEnd() + 1);
-                break;
-            }
+        // Файл сохраняется перед запуском, только если у него ещё нет имени
+        if (file == null) {
+            saveFileThen(() -> run(debugFile));
             return;
         }
+        File f = file;
+        DocumentSnapshot source = fileSaved || fileLoader != null ? null : DocumentSnapshot.of(codeArea);
+        errorsOutput.clear();
+        programOutput.clear();
+        programRunning();
 
-        errorsOutput.println("Compile finished. Validating model...");
-        Collection<ModelStateException> exceptions = program.exceptions();
-        if (!exceptions.isEmpty()) {
-            for (ModelStateException e : exceptions) {
-                errorsOutput.println(e.toString());
+        CompileTask task = new CompileTask(f.toPath(), source, debugFile, errorsOutput, codeArea::selectRange);
+        compileTask = task;
+        compileProgress.progressProperty().bind(task.progressProperty());
+        compileProgress.setVisible(true);
+        task.setOnSucceeded(event -> {
+            finishCompiling();
+            updateLatencyHud();
+            if (task.getValue() == null) {
+                compilationStopped();
+                return;
             }
-            for (ModelStateException e : exceptions) {
-                if (e.getInterval() == null) continue;
-                codeArea.selectRange(e.getInterval().getStart(), e.getInterval().getEnd() + 1);
-                break;
+            prepare(task.getValue());
+            launch(task.getValue());
+        });
+        task.setOnFailed(event -> {
+            finishCompiling();
+            compilationStopped();
+            Throwable exception = task.getException();
+            if (exception instanceof IOException) {
+                alertReadError((IOException) exception);
+            } else {
+                errorsOutput.runtimeException(new RuntimeException("Error while compiling", exception));
             }
-            return;
-        }
+        });
+        task.setOnCancelled(event -> {
+            finishCompiling();
+            errorsOutput.println("Compilation cancelled.");
+            compilationStopped();
+        });
+        Thread thread = new Thread(task, "Compiling");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-        errorsOutput.println("Validating complete. Prepare for launch...");
+    /**
+     * Подключает к программе устройства ввода-вывода и отслеживание её завершения.
+     * Выполняется один раз для каждой скомпилированной программы.
+     */
+    private void prepare(Program program) {
         program.managers().getProgramManager().addOption(ctx -> new BaseProgramContextDecorator(ctx) {
             @Override
             public boolean execute() {
@@ -193,9 +336,13 @@ public class Controller implements Initializable {
             ctx.setInputDevice(programInput);
             return ctx;
         });
+    }
 
+    /**
+     * Запускает проверенную программу
+     */
+    private void launch(Program program) {
         errorsOutput.println("Creating thread...");
-        programRunning();
         programContext = ((Program) program.fix()).createContext();
         programRunService = new Service<Boolean>() {
             @Override
@@ -248,27 +395,100 @@ public class Controller implements Initializable {
     }
 
     private void stop() {
+        if (compileTask != null) {
+            errorsOutput.println("Cancelling compilation...");
+            compileTask.cancel();
+            return;
+        }
         errorsOutput.println("Terminating program...");
         programRunService.cancel();
     }
 
+    /**
+     * Сохраняет файл в фоновом потоке. Файл отмечается сохранённым после завершения записи,
+     * если текст не изменился за время записи.
+     *
+     * @return {@code true} если сохранение начато
+     */
     public boolean saveFile() {
+        CompletableFuture<Long> saving = startSaving();
+        if (saving == null) return false;
+        saving.whenComplete((version, exception) -> Platform.runLater(() -> savingFinished(version, exception)));
+        return true;
+    }
+
+    /**
+     * Сохраняет файл в фоновом потоке и выполняет действие после успешной записи.
+     * Если текст изменился за время записи, действие должно само проверить, что файл сохранён.
+     *
+     * @param onSaved Действие, выполняемое в потоке JavaFX после записи
+     */
+    private void saveFileThen(Runnable onSaved) {
+        CompletableFuture<Long> saving = startSaving();
+        if (saving == null) return;
+        saving.whenCompleteAsync((version, exception) -> {
+            if (savingFinished(version, exception)) onSaved.run();
+        }, Platform::runLater);
+    }
+
+    /**
+     * Сохраняет файл и дожидается завершения записи. Блокирует поток JavaFX,
+     * поэтому используется только при закрытии приложения, когда продолжать работу уже не нужно.
+     *
+     * @return {@code true} если файл сохранён
+     */
+    public boolean saveFileAndWait() {
+        CompletableFuture<Long> saving = startSaving();
+        if (saving == null) return false;
+        try {
+            return savingFinished(saving.get(), null);
+        } catch (ExecutionException e) {
+            return savingFinished(null, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return Результат записи снимка текста, или {@code null} если файл для сохранения не выбран
+     */
+    private CompletableFuture<Long> startSaving() {
+        // Загружаемый файл не изменён, а в редакторе находится только его часть
+        if (fileLoader != null) return CompletableFuture.completedFuture(textVersion);
         if (file == null) requestFileName();
-        if (file == null) return false;
-        try (PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
-            String code = codeArea.getText();
-            pw.write(code);
-            setFileSaved(true);
-        } catch (FileNotFoundException e) {
+        if (file == null) return null;
+        return fileSaver.save(file.toPath(), DocumentSnapshot.of(codeArea), textVersion);
+    }
+
+    /**
+     * @param version   Версия записанного текста
+     * @param exception Ошибка записи, или {@code null}
+     * @return {@code true} если запись выполнена успешно
+     */
+    private boolean savingFinished(Long version, Throwable exception) {
+        if (exception instanceof CompletionException && exception.getCause() != null) exception = exception.getCause();
+        if (exception != null) {
             Alert alert = new Alert(Alert.AlertType.ERROR);
             alert.setHeaderText("Error writing file");
-            alert.getDialogPane().setExpandableContent(new ScrollPane(new TextArea(e.toString())));
+            alert.getDialogPane().setExpandableContent(new ScrollPane(new TextArea(exception.toString())));
             alert.showAndWait();
             return false;
         }
+        if (version == textVersion) setFileSaved(true);
+        // Журнал начинается от сохранённого файла, изменения, сделанные во время записи, переносятся в него снимком
+        if (file != null && fileLoader == null) {
+            editJournal.start(file.toPath(), version == textVersion ? null : DocumentSnapshot.of(codeArea));
+        }
         return true;
     }
 
+    private void finishCompiling() {
+        compileTask = null;
+        compileProgress.progressProperty().unbind();
+        compileProgress.setVisible(false);
+    }
+
     private void programRunning() {
         running = true;
         runBtn.setDisable(true);
@@ -281,13 +501,20 @@ public class Controller implements Initializable {
 
     private void programStopped() {
         programContext = null;
+        errorsOutput.println("Program finished. ");
+        compilationStopped();
+    }
+
+    /**
+     * Возвращает кнопки запуска в исходное состояние, когда программа не была запущена
+     */
+    private void compilationStopped() {
         runBtn.setDisable(false);
         debugBtn.setDisable(false);
         stopBtn.setDisable(true);
         runMenuItem.setDisable(false);
         debugMenuItem.setDisable(false);
         stopMenuItem.setDisable(true);
-        errorsOutput.println("Program finished. ");
         running = false;
     }
 
@@ -326,9 +553,20 @@ public class Controller implements Initializable {
 
     @Override
     public void initialize(URL url, ResourceBundle resourceBundle) {
-        codeArea.textProperty().addListener((observableValue, s, s2) -> setFileSaved(false));
-        codeArea.textProperty().addListener((observableValue, s, s2) -> textChanged = true);
-        codeArea.textProperty().addListener((observableValue, s, s2) -> updateCaretPos(codeArea.getCaretPosition()));
+        // Изменения отслеживаются без слушателей textProperty, которые собирали бы весь текст при каждом изменении
+        codeArea.plainTextChanges().subscribe(change -> {
+            textVersion++;
+            if (fileLoader == null) setFileSaved(false);
+            textChanged = true;
+            if (firstUnhighlightedEditNanos == 0) firstUnhighlightedEditNanos = System.nanoTime();
+            highlightingWorker.invalidate();
+            if (viewportHighlighting.cancel()) highlightingIncomplete = true;
+            updateCaretPos(codeArea.getCaretPosition());
+        });
+        codeArea.multiPlainChanges().subscribe(changes -> pendingChange = TextChange.merge(pendingChange, changes));
+        codeArea.multiPlainChanges().subscribe(changes -> {
+            if (fileLoader == null) editJournal.append(changes, DocumentSnapshot.of(codeArea));
+        });
         codeArea.caretPositionProperty().addListener((observable, oldValue, newValue) -> updateCaretPos(newValue));
         codeArea.setParagraphGraphicFactory(LineNumberFactory.get(codeArea));
         final Pattern whiteSpace = Pattern.compile("^\\s+");
@@ -344,7 +582,23 @@ public class Controller implements Initializable {
             }
         });
 
-        subscribeHighlighter(500);
+        viewportHighlighting = new ViewportHighlighting(codeArea);
+        textSearch = new TextSearch(codeArea);
+        viewportHighlighting.setLayer(textSearch);
+        codeArea.estimatedScrollYProperty().addListener((observable, oldValue, newValue) -> {
+            if (fullHighlightingPending) viewportHighlighting.previewVisible();
+        });
+        highlightingPause.setOnFinished(event -> computeHighlightingAsync(false));
+        idleHighlightingPause.setOnFinished(event -> computeIdleHighlighting());
+        highlightingWorker.setOnError(e ->
+                errorsOutput.runtimeException(new RuntimeException("Error while highlighting", e)));
+        highlightingWorker.addCostListener((computed, nanos, length) ->
+                Platform.runLater(() -> onHighlightingComputed(computed, nanos, length)));
+        highlightingStatus.managedProperty().bind(highlightingStatus.visibleProperty());
+        loadingProgress.managedProperty().bind(loadingProgress.visibleProperty());
+        compileProgress.managedProperty().bind(compileProgress.visibleProperty());
+        projectIndexer.start();
+        subscribeHighlighter();
         codeArea.getStylesheets().add(getClass().getResource("/editor.css").toExternalForm());
 
         Popup popup = new Popup();
@@ -359,7 +613,7 @@ public class Controller implements Initializable {
         codeArea.addEventHandler(MouseOverTextEvent.MOUSE_OVER_TEXT_BEGIN, e -> {
             if (textChanged) return;
             int chIdx = e.getCharacterIndex();
-            String message = highlighter.getMessageForPos(chIdx);
+            String message = displayedHighlighter.getMessageForPos(chIdx);
             if (message != null) {
                 Point2D pos = e.getScreenPosition();
                 popupMsg.setText(message);
@@ -374,19 +628,27 @@ public class Controller implements Initializable {
             if (textChanged) return;
             if(codeArea.getSelection().getLength() > 0) return;
             Platform.runLater(()->{
-                List<Highlighter.HighlightingResult> results = highlighter.changeStylesOnCursor(newValue);
+                List<Highlighter.HighlightingResult> results = displayedHighlighter.changeStylesOnCursor(newValue);
                 if (results != null) {
                     for (Highlighter.HighlightingResult result : results) {
-                        codeArea.setStyleSpans(result.start, result.styleSpans);
+                        StyleSpansDiff.apply(codeArea, result.start, textSearch.overlay(result.start, result.styleSpans));
                     }
                 }
             });
         });
         codeArea.setOnContextMenuRequested(event -> {
             codeArea.hideContextMenu();
+            if (textChanged) return;
             OptionalInt characterIndex = codeArea.hit(event.getX(), event.getY()).getCharacterIndex();
             if(!characterIndex.isPresent()) return;
-            ContextMenu contextMenu = highlighter.getContextMenu(characterIndex.getAsInt());
+            ContextMenu contextMenu = displayedHighlighter.getContextMenu(characterIndex.getAsInt());
+            String name = nameAt(characterIndex.getAsInt());
+            if (name != null) {
+                if (contextMenu == null) contextMenu = new ContextMenu();
+                MenuItem findInProject = new MenuItem("Find " + name + " in project");
+                findInProject.setOnAction(e -> findInProject(name));
+                contextMenu.getItems().add(findInProject);
+            }
             if(contextMenu == null) return;
             contextMenu.setAutoHide(true);
             codeArea.setContextMenu(contextMenu);
@@ -408,8 +670,11 @@ public class Controller implements Initializable {
                                     searchWindow = new Stage();
                                     searchWindow.setTitle("Search");
                                     searchWindow.setScene(new Scene(root));
-                                    SearchDialogController controller = loader.getController();
-                                    controller.setCodeArea(codeArea);
+                                    searchDialogController = loader.getController();
+                                    searchDialogController.setTextSearch(textSearch);
+                                    // Совпадения выделяются, только пока окно поиска открыто
+                                    searchWindow.setOnShown(event -> searchDialogController.updateSearch());
+                                    searchWindow.setOnHidden(event -> textSearch.clear());
                                 } else {
                                     searchWindow.show();
                                 }
@@ -418,6 +683,13 @@ public class Controller implements Initializable {
 
                             }
                         })));
+        Nodes.addInputMap(codeArea, InputMap.sequence(
+                InputMap.consume(
+                        EventPattern.keyPressed(KeyCode.F3, KeyCombination.SHIFT_DOWN),
+                        e -> textSearch.previous()),
+                InputMap.consume(
+                        EventPattern.keyPressed(KeyCode.F3),
+                        e -> textSearch.next())));
         Nodes.addInputMap(codeArea, InputMap.sequence(
                 InputMap.consume(
                         EventPattern.keyPressed(KeyCode.DELETE, KeyCombination.SHIFT_DOWN),
@@ -438,15 +710,21 @@ public class Controller implements Initializable {
 
         highlightingToggleGroup.selectedToggleProperty().addListener((observable, oldValue, newValue) -> {
             highlighter.close();
+            highlightingDelay.reset();
+            highlightingBudget.reset();
+            updateFallback();
             if (newValue == noHighlightingMenuItem) {
                 highlighter = new NoHighlighting();
             } else if (newValue == lexerHighlightingMenuItem) {
-                highlighter = new LexerHighlighting();
+                highlighter = new LexerHighlighting(documentModel);
             } else if (newValue == parserHighlightingMenuItem) {
-                highlighter = new ParserHighlighting();
+                highlighter = new ParserHighlighting(documentModel);
             } else if (newValue == semanticHighlightingMenuItem) {
-                highlighter = new SemanticHighlighting(codeArea);
+                SemanticHighlighting semantic = new SemanticHighlighting(codeArea, documentModel);
+                semantic.setTreeExecutor(highlightingWorker::execute);
+                highlighter = semantic;
             }
+            displayedHighlighter = highlighter;
             updateHighlighting();
         });
 
@@ -469,16 +747,26 @@ public class Controller implements Initializable {
             }
         });
 
+        latencyHud.managedProperty().bind(latencyHud.visibleProperty());
+        latencyHud.visibleProperty().bind(latencyHudMenuItem.selectedProperty());
+        latencyHudMenuItem.selectedProperty().addListener((observable, oldValue, newValue) -> {
+            if (newValue) {
+                Phase.resetAll();
+                updateLatencyHud();
+            }
+        });
+
         highlightingDelayTF.textProperty().addListener((observable, oldValue, newValue) -> {
-            int newValueInt = Integer.parseInt(newValue);
-            if (!newValue.matches("\\d*") || newValueInt < 1) {
+            // Длина ограничена, чтобы значение помещалось в int, задержка больше 99999 мс отклоняется
+            if (!newValue.matches("\\d{1,5}") || Integer.parseInt(newValue) < 1) {
                 highlightingDelayTF.setText(oldValue);
+                return;
             }
-            subscribeHighlighter(newValueInt);
+            highlightingDelay.setMaxDelayMillis(Integer.parseInt(newValue));
         });
     }
 
-    private void subscribeHighlighter(int millis) {
+    private void subscribeHighlighter() {
         if (updateHighlightSubscription != null) {
             updateHighlightSubscription.unsubscribe();
         }
@@ -488,78 +776,238 @@ public class Controller implements Initializable {
                 //   when making multiple changes (e.g. renaming a method at multiple parts in file)
                 .multiPlainChanges()
 
-                // do not emit an event until specified delay have passed since the last emission of previous stream
-                .successionEnds(Duration.ofMillis(millis))
-
-                // run the following code block when previous stream emits an event
+                // compute highlighting in background thread when no changes have been made during the delay.
+                // The delay grows with the measured cost of highlighting, up to the value of highlightingDelayTF
                 .subscribe(ignore -> {
-                    Platform.runLater(()->{
-                        Highlighter.HighlightingResult highlightingResult = highlighter.computeHighlighting(codeArea.getText());
-                        if(highlightingResult.styleSpans != null) {
-                            codeArea.setStyleSpans(highlightingResult.start, highlightingResult.styleSpans);
-                        }
-                        textChanged = false;
-                    });
+                    // Во время загрузки файла подсветка не вычисляется, она вычисляется один раз после загрузки
+                    if (fileLoader != null) return;
+                    Duration delay = highlightingDelay.delay(codeArea.getLength());
+                    highlightingPause.setDuration(javafx.util.Duration.millis(delay.toMillis()));
+                    highlightingPause.playFromStart();
                 });
     }
 
+    /**
+     * Ставит в очередь фонового потока вычисление подсветки для текущего текста.
+     * Результат применяется к редактору, только если текст не изменился за время вычисления.
+     *
+     * @param full Вычислить подсветку для всего текста
+     */
+    private void computeHighlightingAsync(boolean full) {
+        if (highlightingBudget.checkLength(codeArea.getLength())) updateFallback();
+        full = full || highlightingIncomplete;
+        highlightingIncomplete = false;
+        if (full && ViewportHighlighting.isLarge(codeArea.getLength())) {
+            // Пока вычисляется подсветка всего документа, видимая часть подсвечивается лексером
+            fullHighlightingPending = true;
+            viewportHighlighting.previewVisible();
+        }
+        TextChange change = pendingChange;
+        pendingChange = null;
+        Highlighter live = liveHighlighter();
+        highlightingWorker.submit(live, DocumentSnapshot.of(codeArea), change, full, result -> applyHighlighting(live, result));
+        if (fallbackHighlighter != null) idleHighlightingPause.playFromStart();
+    }
+
+    /**
+     * Вычисляет выбранную подсветку во время простоя, пока при наборе текста используется подсветка по лексемам.
+     * Выбранная подсветка не получала изменений текста, поэтому вычисляется для всего текста.
+     */
+    private void computeIdleHighlighting() {
+        if (fallbackHighlighter == null) return;
+        Highlighter selected = highlighter;
+        highlightingWorker.submit(selected, DocumentSnapshot.of(codeArea), null, true, result -> applyHighlighting(selected, result));
+    }
+
+    /**
+     * Применяет вычисленную подсветку к редактору
+     *
+     * @param computed           Объект подсветки, вычисливший разметку
+     * @param highlightingResult Разметка
+     */
+    private void applyHighlighting(Highlighter computed, Highlighter.HighlightingResult highlightingResult) {
+        long start = System.nanoTime();
+        if (highlightingResult.styleSpans != null) {
+            viewportHighlighting.apply(highlightingResult.start, highlightingResult.styleSpans);
+        }
+        Phase.APPLYING_STYLES.record(start);
+        if (firstUnhighlightedEditNanos != 0) {
+            Phase.KEYSTROKE_TO_HIGHLIGHT.record(firstUnhighlightedEditNanos);
+            firstUnhighlightedEditNanos = 0;
+        }
+        displayedHighlighter = computed;
+        fullHighlightingPending = false;
+        textChanged = false;
+        updateLatencyHud();
+    }
+
+    /**
+     * @return Объект подсветки, используемый при наборе текста
+     */
+    private Highlighter liveHighlighter() {
+        return fallbackHighlighter != null ? fallbackHighlighter : highlighter;
+    }
+
+    /**
+     * Учитывает длительность вычисления подсветки при выборе задержки и допустимого времени.
+     * Вызывается в потоке JavaFX.
+     */
+    private void onHighlightingComputed(Highlighter computed, long nanos, int length) {
+        if (computed == liveHighlighter()) highlightingDelay.record(nanos, length);
+        if (computed != highlighter) return;
+        if (!(computed instanceof ParserHighlighting) && !(computed instanceof SemanticHighlighting)) return;
+        if (highlightingBudget.record(nanos, length)) updateFallback();
+    }
+
+    /**
+     * Включает или выключает подсветку по лексемам при наборе текста в соответствии с допустимым временем
+     */
+    private void updateFallback() {
+        boolean exceeded = highlightingBudget.isExceeded();
+        if (exceeded == (fallbackHighlighter != null)) return;
+        highlightingDelay.reset();
+        if (exceeded) {
+            // Подсветка по лексемам изменяет токены, поэтому она не должна разделять модель с выбранной подсветкой
+            fallbackHighlighter = new LexerHighlighting();
+        } else {
+            fallbackHighlighter.close();
+            fallbackHighlighter = null;
+            idleHighlightingPause.stop();
+            // Выбранная подсветка не получала изменений, обработанных подсветкой по лексемам
+            highlightingIncomplete = true;
+        }
+        highlightingStatus.setVisible(exceeded);
+    }
+
+    /**
+     * Обновляет строку с длительностями этапов подсветки и компиляции, если она отображается
+     */
+    private void updateLatencyHud() {
+        if (latencyHud.isVisible()) latencyHud.setText(Phase.summary());
+    }
+
     private void duplicateLine() {
         int caretPosition = codeArea.getCaretPosition();
-        String text = codeArea.getText();
-        final int lineStart = text.substring(0, caretPosition).lastIndexOf('\n') + 1;
-        int i;
-        for (i = lineStart; i < text.length() && text.charAt(i) != '\r' && text.charAt(i) != '\n'; i++) ;
-        if (i < text.length() && text.charAt(i) == '\r') i++;
-        if (i < text.length() && text.charAt(i) == '\n') i++;
-        String line = text.substring(lineStart, i);
-        int start = i;
-        codeArea.insertText(start, line);
-        codeArea.moveTo(caretPosition + line.length());
+        int paragraph = codeArea.getCurrentParagraph();
+        String line = codeArea.getParagraph(paragraph).getText();
+        int lineStart = codeArea.getAbsolutePosition(paragraph, 0);
+        if (paragraph < codeArea.getParagraphs().size() - 1) {
+            codeArea.insertText(lineStart + line.length() + 1, line + '\n');
+        } else {
+            codeArea.insertText(lineStart + line.length(), '\n' + line);
+        }
+        codeArea.moveTo(caretPosition + line.length() + 1);
     }
 
     private void deleteLine() {
         int caretPosition = codeArea.getCaretPosition();
-        String text = codeArea.getText();
-        final int lineStart = text.substring(0, caretPosition).lastIndexOf('\n') + 1;
-        int i;
-        for (i = lineStart; i < text.length() && text.charAt(i) != '\r' && text.charAt(i) != '\n'; i++) ;
-        if (i < text.length() && text.charAt(i) == '\r') i++;
-        if (i < text.length() && text.charAt(i) == '\n') i++;
-        codeArea.selectRange(lineStart, i);
+        int paragraph = codeArea.getCurrentParagraph();
+        int lineStart = codeArea.getAbsolutePosition(paragraph, 0);
+        int lineEnd = paragraph < codeArea.getParagraphs().size() - 1 ?
+                codeArea.getAbsolutePosition(paragraph + 1, 0) :
+                lineStart + codeArea.getParagraphLength(paragraph);
+        codeArea.selectRange(lineStart, lineEnd);
         codeArea.cut();
-        codeArea.moveTo(caretPosition);
+        codeArea.moveTo(Math.min(caretPosition, codeArea.getLength()));
     }
 
     private void untab() {
         int caretPosition = codeArea.getCaretPosition();
-        String text = codeArea.getText();
-        final int lineStart = text.substring(0, caretPosition).lastIndexOf('\n') + 1;
-        if (text.charAt(lineStart) == '\t') {
+        int paragraph = codeArea.getCurrentParagraph();
+        String line = codeArea.getParagraph(paragraph).getText();
+        int lineStart = codeArea.getAbsolutePosition(paragraph, 0);
+        if (!line.isEmpty() && line.charAt(0) == '\t') {
             codeArea.deleteText(lineStart, lineStart + 1);
-            codeArea.moveTo(caretPosition - 1);
+            codeArea.moveTo(Math.max(lineStart, caretPosition - 1));
             return;
         }
         int i;
-        for (i = 0; i < 4; i++) {
-            if (text.charAt(lineStart + i) != ' ') break;
+        for (i = 0; i < 4 && i < line.length(); i++) {
+            if (line.charAt(i) != ' ') break;
         }
         codeArea.deleteText(lineStart, lineStart + i);
-        codeArea.moveTo(caretPosition - i);
+        codeArea.moveTo(Math.max(lineStart, caretPosition - i));
+    }
+
+    public void onFindInProjectAction(ActionEvent actionEvent) {
+        String name = nameAt(codeArea.getCaretPosition());
+        TextInputDialog dialog = new TextInputDialog(name == null ? "" : name);
+        dialog.setTitle("Find in project");
+        dialog.setHeaderText("Find declarations, clauses and usages of");
+        dialog.showAndWait().filter(s -> !s.trim().isEmpty()).ifPresent(s -> findInProject(s.trim()));
+    }
+
+    /**
+     * Показывает окно со всеми вхождениями имени в файлы проекта
+     */
+    private void findInProject(String name) {
+        if (symbolResultsWindow != null) symbolResultsWindow.close();
+        symbolResultsWindow = new SymbolResultsWindow(name + " in project", this::goToSymbol);
+        symbolResultsWindow.show(projectIndexer.index().find(name));
+    }
+
+    /**
+     * Открывает файл, содержащий вхождение имени, если он ещё не открыт, и выделяет имя
+     */
+    private void goToSymbol(SymbolEntry entry) {
+        Path current = file == null ? null : file.toPath().toAbsolutePath().normalize();
+        if (!entry.file.equals(current)) {
+            if (!fileSaved && codeArea.getLength() != 0) {
+                // После записи переход повторяется: если текст изменился во время записи, файл сохраняется снова
+                saveFileThen(() -> goToSymbol(entry));
+                return;
+            }
+            ((Stage) root.getScene().getWindow()).setTitle(entry.file.getFileName().toString());
+            openFile(entry.file.toFile(), () -> selectSymbol(entry));
+            return;
+        }
+        if (fileLoader == null) selectSymbol(entry);
+    }
+
+    private void selectSymbol(SymbolEntry entry) {
+        int start = Math.min(entry.offset, codeArea.getLength());
+        codeArea.selectRange(start, Math.min(start + entry.length(), codeArea.getLength()));
+        codeArea.requestFollowCaret();
+    }
+
+    /**
+     * @param pos Позиция в тексте
+     * @return Имя предиката или домена, на котором находится позиция, или {@code null}
+     */
+    private String nameAt(int pos) {
+        int paragraph = codeArea.offsetToPosition(pos, TwoDimensional.Bias.Forward).getMajor();
+        String line = codeArea.getParagraph(paragraph).getText();
+        int inLine = pos - codeArea.getAbsolutePosition(paragraph, 0);
+        int start = inLine;
+        int end = inLine;
+        while (start > 0 && isNameChar(line.charAt(start - 1))) start--;
+        while (end < line.length() && isNameChar(line.charAt(end))) end++;
+        if (start == end || !Character.isLowerCase(line.charAt(start))) return null;
+        return line.substring(start, end);
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    public void onUpdateHighlightingAction(ActionEvent actionEvent) {
+        // Подсветка обновляется по запросу пользователя, поэтому сохранённые результаты анализа не используются
+        documentModel.clear();
+        updateHighlighting();
     }
 
     public void updateHighlighting() {
-        StyleSpans<Collection<String>> styleSpans = highlighter.computeHighlightingFull(codeArea.getText());
-        if(styleSpans != null) codeArea.setStyleSpans(0, styleSpans);
-        textChanged = false;
+        // Результаты, вычисленные предыдущим объектом подсветки, больше не нужны
+        highlightingWorker.invalidate();
+        textChanged = true;
+        computeHighlightingAsync(true);
     }
 
     private void updateCaretPos(int pos) {
-        String text = codeArea.getText();
-        text = text.substring(0, Math.min(pos, text.length()));
-        String[] lines = text.split("\n");
-        int line = lines.length;
-        int inLine = lines.length == 0 ? 0 : lines[lines.length - 1].length();
-        caretPos.setText(line + ":" + inLine);
+        // Номер строки находится по дереву абзацев редактора без копирования текста
+        TwoDimensional.Position position = codeArea.offsetToPosition(Math.min(pos, codeArea.getLength()),
+                TwoDimensional.Bias.Forward);
+        caretPos.setText((position.getMajor() + 1) + ":" + position.getMinor());
     }
 
     public void onSaveAction(ActionEvent actionEvent) {
@@ -572,9 +1020,12 @@ public class Controller implements Initializable {
     }
 
     public void newFile(ActionEvent actionEvent) {
-        if (!fileSaved && !codeArea.getText().equals("")) {
-            if (!saveFile()) return;
+        if (!fileSaved && codeArea.getLength() != 0) {
+            saveFileThen(() -> newFile(actionEvent));
+            return;
         }
+        if (fileLoader != null) fileLoader.cancel();
+        editJournal.stop();
         codeArea.clear();
         fileSaved = true;
         file = null;
@@ -582,17 +1033,12 @@ public class Controller implements Initializable {
     }
 
     public void loadFile(ActionEvent actionEvent) {
-        if (!fileSaved && !codeArea.getText().equals("")) {
-            if (!saveFile()) return;
+        if (!fileSaved && codeArea.getLength() != 0) {
+            saveFileThen(() -> loadFile(actionEvent));
+            return;
         }
         if (!requestFileName(false)) return;
-        try {
-            byte[] encoded = Files.readAllBytes(file.toPath());
-            codeArea.replaceText(new String(encoded, StandardCharsets.UTF_8));
-            setFileSaved(true);
-        } catch (IOException e) {
-            alertReadError(e);
-        }
+        setFile(file);
     }
 
     public void runMenuAction(ActionEvent actionEvent) {
@@ -616,6 +1062,13 @@ public class Controller implements Initializable {
 
     public void close() {
         highlighter.close();
+        if (fallbackHighlighter != null) fallbackHighlighter.close();
+        highlightingWorker.close();
         if(searchWindow != null)  searchWindow.close();
+        textSearch.close();
+        fileSaver.close();
+        editJournal.close();
+        if (symbolResultsWindow != null) symbolResultsWindow.close();
+        projectIndexer.close();
     }
 }
\ No newline at end of file
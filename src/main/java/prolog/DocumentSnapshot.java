@@ -0,0 +1,151 @@
+package prolog;
+
+import org.fxmisc.richtext.GenericStyledArea;
+import org.fxmisc.richtext.model.StyledDocument;
+import org.fxmisc.richtext.model.TwoDimensional;
+
+import java.io.IOException;
+
+/**
+ * Неизменяемый снимок текста редактора в виде {@link CharSequence}.
+ * <p>
+ * Документ редактора хранится как неизменяемое дерево абзацев, которое при редактировании заменяется новым
+ * с общими неизменёнными абзацами. Снимок ссылается на текущее дерево, поэтому создаётся без копирования текста,
+ * а дальнейшие изменения в редакторе его не затрагивают. Символы читаются из абзацев по мере обращения,
+ * последний прочитанный абзац запоминается, поэтому последовательное чтение не требует поиска по дереву.
+ * Снимок можно передавать в фоновые потоки.
+ */
+public final class DocumentSnapshot implements CharSequence {
+    private final StyledDocument<?, ?, ?> document;
+    private final int start;
+    private final int length;
+
+    /**
+     * Последний прочитанный абзац
+     */
+    private Line line;
+
+    private static final class Line {
+        final int index;
+        /**
+         * Смещение начала абзаца в документе
+         */
+        final int start;
+        final String text;
+
+        Line(int index, int start, String text) {
+            this.index = index;
+            this.start = start;
+            this.text = text;
+        }
+    }
+
+    private DocumentSnapshot(StyledDocument<?, ?, ?> document, int start, int length) {
+        this.document = document;
+        this.start = start;
+        this.length = length;
+    }
+
+    /**
+     * @return Снимок текущего текста редактора
+     */
+    public static DocumentSnapshot of(GenericStyledArea<?, ?, ?> area) {
+        StyledDocument<?, ?, ?> document = area.getContent().snapshot();
+        return new DocumentSnapshot(document, 0, document.length());
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+        int pos = start + index;
+        Line l = line;
+        if (l == null || pos < l.start || pos > l.start + l.text.length()) {
+            l = locate(pos, l);
+            line = l;
+        }
+        int inLine = pos - l.start;
+        // Абзацы хранятся без перевода строки, он находится сразу за текстом абзаца
+        return inLine == l.text.length() ? '\n' : l.text.charAt(inLine);
+    }
+
+    @Override
+    public DocumentSnapshot subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Range " + start + ".." + end + ", length " + length);
+        }
+        return new DocumentSnapshot(document, this.start + start, end - start);
+    }
+
+    /**
+     * Записывает текст снимка по абзацам, не собирая его в одну строку
+     */
+    public void writeTo(Appendable out) throws IOException {
+        if (length == 0) return;
+        TwoDimensional.Position position = document.offsetToPosition(start, TwoDimensional.Bias.Forward);
+        int paragraph = position.getMajor();
+        int from = position.getMinor();
+        int remaining = length;
+        while (remaining > 0) {
+            String text = document.getParagraph(paragraph).getText();
+            int to = Math.min(text.length(), from + remaining);
+            out.append(text, from, to);
+            remaining -= to - from;
+            if (remaining > 0) {
+                out.append('\n');
+                remaining--;
+            }
+            paragraph++;
+            from = 0;
+        }
+    }
+
+    /**
+     * Ищет строку в снимке
+     *
+     * @param string     Искомая строка
+     * @param from       Позиция, с которой начинается поиск
+     * @param ignoreCase Не учитывать регистр
+     * @return Позиция начала найденной строки, или {@code -1}
+     */
+    public int indexOf(String string, int from, boolean ignoreCase) {
+        if (string.isEmpty()) return Math.min(Math.max(from, 0), length);
+        for (int i = Math.max(from, 0); i <= length - string.length(); i++) {
+            int j = 0;
+            while (j < string.length() && sameChar(charAt(i + j), string.charAt(j), ignoreCase)) j++;
+            if (j == string.length()) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(length);
+        try {
+            writeTo(builder);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return builder.toString();
+    }
+
+    private Line locate(int pos, Line last) {
+        // При последовательном чтении следующий абзац начинается сразу за переводом строки предыдущего
+        if (last != null && pos == last.start + last.text.length() + 1) {
+            return new Line(last.index + 1, pos, document.getParagraph(last.index + 1).getText());
+        }
+        TwoDimensional.Position position = document.offsetToPosition(pos, TwoDimensional.Bias.Forward);
+        int index = position.getMajor();
+        return new Line(index, pos - position.getMinor(), document.getParagraph(index).getText());
+    }
+
+    private static boolean sameChar(char a, char b, boolean ignoreCase) {
+        if (a == b) return true;
+        return ignoreCase && (Character.toLowerCase(a) == Character.toLowerCase(b)
+                || Character.toUpperCase(a) == Character.toUpperCase(b));
+    }
+}
@@ -0,0 +1,276 @@
+package prolog;
+
+import org.fxmisc.richtext.model.PlainTextChange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал изменений текста, не сохранённых в файл.
+ * <p>
+ * Изменения дописываются в конец файла журнала рядом с редактируемым файлом, поэтому запись занимает время,
+ * пропорциональное размеру изменения, а не размеру документа. Журнал начинается с размера и времени изменения
+ * сохранённого файла, к которому применяются записанные изменения. Когда журнал становится намного больше документа,
+ * он заменяется одним снимком текущего текста. После сохранения файла журнал начинается заново,
+ * при нормальном закрытии редактора удаляется. Если при запуске журнал остался, редактор был закрыт аварийно,
+ * и текст можно восстановить, применив журнал к файлу.
+ * <p>
+ * Записи выполняются в отдельном потоке. Каждая запись содержит контрольную сумму,
+ * поэтому запись, прерванная при сбое, не применяется при восстановлении.
+ */
+public class EditJournal {
+    private static final int MAGIC = 0x504A524E;
+    private static final int VERSION = 1;
+    private static final byte EDIT = 'E';
+    private static final byte SNAPSHOT = 'S';
+
+    /**
+     * Журнал меньше этого размера не сжимается
+     */
+    private static final long COMPACT_MIN_BYTES = 1024 * 1024;
+
+    /**
+     * Во сколько раз журнал должен превысить длину документа, чтобы быть заменённым снимком
+     */
+    private static final int COMPACT_RATIO = 4;
+
+    /**
+     * Минимальный интервал между сбросами журнала на диск
+     */
+    private static final long FORCE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Поток не является фоновым, чтобы удаление журнала при закрытии редактора было выполнено
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "Journal"));
+
+    /**
+     * Журнал ведётся для текущего файла. Используется в потоке JavaFX.
+     */
+    private boolean active;
+
+    // Используются только в потоке журнала
+    private Path file;
+    private Path journalFile;
+    private FileChannel channel;
+    private long lastForceNanos;
+
+    /**
+     * Начинает журнал файла заново. Вызывается из потока JavaFX после загрузки или сохранения файла.
+     *
+     * @param file Редактируемый файл
+     * @param text Текст документа, если он отличается от сохранённого файла, иначе {@code null}
+     */
+    public void start(Path file, DocumentSnapshot text) {
+        active = true;
+        executor.execute(() -> {
+            try {
+                open(file, text);
+            } catch (IOException e) {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * Дописывает изменения текста в журнал. Вызывается из потока JavaFX.
+     *
+     * @param changes Изменения
+     * @param text    Текст после изменений, используется для сжатия журнала
+     */
+    public void append(List<PlainTextChange> changes, DocumentSnapshot text) {
+        if (!active) return;
+        executor.execute(() -> {
+            if (channel == null) return;
+            try {
+                for (PlainTextChange change : changes) {
+                    channel.write(editRecord(change));
+                }
+                if (channel.size() > Math.max(COMPACT_MIN_BYTES, (long) COMPACT_RATIO * text.length())) {
+                    open(file, text);
+                } else if (System.nanoTime() - lastForceNanos > FORCE_INTERVAL_NANOS) {
+                    channel.force(false);
+                    lastForceNanos = System.nanoTime();
+                }
+            } catch (IOException e) {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * Прекращает вести журнал и удаляет его. Вызывается из потока JavaFX, когда изменения сохранены или отброшены.
+     */
+    public void stop() {
+        active = false;
+        executor.execute(() -> {
+            Path journal = journalFile;
+            closeChannel();
+            if (journal == null) return;
+            try {
+                Files.deleteIfExists(journal);
+            } catch (IOException ignored) {
+            }
+        });
+    }
+
+    /**
+     * Удаляет журнал и останавливает поток журнала после выполнения поставленных записей
+     */
+    public void close() {
+        stop();
+        executor.shutdown();
+    }
+
+    /**
+     * @return Файл журнала для редактируемого файла
+     */
+    public static Path journalFile(Path file) {
+        return file.resolveSibling("." + file.getFileName() + ".journal");
+    }
+
+    /**
+     * Восстанавливает текст по журналу, оставшемуся после аварийного закрытия редактора
+     *
+     * @param file Редактируемый файл
+     * @return Восстановленный текст, или {@code null} если журнала нет, он пуст, не подходит к файлу
+     * или не содержит несохранённых изменений
+     */
+    public static String recover(Path file) throws IOException {
+        Path journal = journalFile(file);
+        if (!Files.isRegularFile(journal)) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(journal));
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            long baseSize = buffer.getLong();
+            long baseModified = buffer.getLong();
+            StringBuilder text = null;
+            while (buffer.hasRemaining()) {
+                int recordStart = buffer.position();
+                byte type = buffer.get();
+                int position = 0;
+                int removed = 0;
+                if (type == EDIT) {
+                    position = buffer.getInt();
+                    removed = buffer.getInt();
+                } else if (type != SNAPSHOT) {
+                    break;
+                }
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) break;
+                byte[] inserted = new byte[length];
+                buffer.get(inserted);
+                CRC32 crc = new CRC32();
+                crc.update(buffer.array(), recordStart, buffer.position() - recordStart);
+                if (buffer.getInt() != (int) crc.getValue()) break;
+                String insertedText = new String(inserted, StandardCharsets.UTF_8);
+                if (type == SNAPSHOT) {
+                    text = new StringBuilder(insertedText);
+                    continue;
+                }
+                if (text == null) {
+                    // Изменения применяются к сохранённому файлу, только если он не изменился с начала журнала
+                    if (!Files.isRegularFile(file) || Files.size(file) != baseSize
+                            || Files.getLastModifiedTime(file).toMillis() != baseModified) {
+                        return null;
+                    }
+                    // Позиции изменений записаны в тексте редактора, где переводы строк уже заменены
+                    text = new StringBuilder(readText(file));
+                }
+                if (position < 0 || removed < 0 || position + removed > text.length()) break;
+                text.replace(position, position + removed, insertedText);
+            }
+            if (text == null) return null;
+            String recovered = text.toString();
+            if (Files.isRegularFile(file) && recovered.equals(readText(file))) {
+                return null;
+            }
+            return recovered;
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Текст файла с переводами строк, как в редакторе
+     */
+    private static String readText(Path file) throws IOException {
+        return LineEndings.normalize(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Удаляет журнал, оставшийся после аварийного закрытия редактора
+     */
+    public static void discard(Path file) throws IOException {
+        Files.deleteIfExists(journalFile(file));
+    }
+
+    /**
+     * Создаёт новый журнал и атомарно заменяет им прежний
+     */
+    private void open(Path file, DocumentSnapshot text) throws IOException {
+        closeChannel();
+        this.file = file;
+        journalFile = journalFile(file);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(Files.exists(file) ? Files.size(file) : -1);
+        out.writeLong(Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1);
+        if (text != null) out.write(record(SNAPSHOT, 0, 0, text.toString()).array());
+
+        Path temp = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+        Files.write(temp, bytes.toByteArray());
+        try {
+            Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, journalFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+        channel = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        lastForceNanos = System.nanoTime();
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        channel = null;
+        journalFile = null;
+    }
+
+    private static ByteBuffer editRecord(PlainTextChange change) throws IOException {
+        return record(EDIT, change.getPosition(), change.getRemoved().length(), change.getInserted());
+    }
+
+    private static ByteBuffer record(byte type, int position, int removed, String inserted) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        if (type == EDIT) {
+            out.writeInt(position);
+            out.writeInt(removed);
+        }
+        byte[] text = inserted.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(text.length);
+        out.write(text);
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,99 @@
+package prolog;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+
+/**
+ * Загрузка файла в редактор частями.
+ * <p>
+ * Файл читается частями фиксированного размера в один и тот же буфер, каждая часть декодируется из UTF-8
+ * в фоновом потоке и передаётся в поток JavaFX. Файл не отображается в память: отображение удерживает файл
+ * открытым до сборки мусора, и на Windows сохранение с заменой файла после загрузки не выполнялось бы.
+ * Следующая часть читается только после того, как предыдущая добавлена в редактор, поэтому в памяти
+ * одновременно находится не больше одной части файла, а поток JavaFX между частями обрабатывает
+ * ввод пользователя и отрисовку.
+ */
+public class FileLoader extends Task<Void> {
+    /**
+     * Размер части файла, декодируемой за один раз
+     */
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;
+
+    private final Path path;
+    private final Consumer<String> appendChunk;
+
+    /**
+     * @param path        Файл
+     * @param appendChunk Добавляет часть текста в редактор. Вызывается в потоке JavaFX.
+     */
+    public FileLoader(Path path, Consumer<String> appendChunk) {
+        this.path = path;
+        this.appendChunk = appendChunk;
+    }
+
+    @Override
+    protected Void call() throws IOException, InterruptedException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            ByteBuffer bytes = ByteBuffer.allocate(CHUNK_BYTES);
+            // При декодировании UTF-8 символов получается не больше, чем байт
+            CharBuffer chars = CharBuffer.allocate(CHUNK_BYTES + 1);
+            long position = 0;
+            boolean carriageReturn = false;
+            updateProgress(0, size);
+            while (true) {
+                if (isCancelled()) return null;
+                int read = channel.read(bytes);
+                boolean last = read < 0;
+                if (read > 0) position += read;
+                bytes.flip();
+                chars.clear();
+                // Перевод строки \r\n, разделённый между частями, должен попасть в редактор целиком
+                if (carriageReturn) chars.put('\r');
+                CoderResult result = decoder.decode(bytes, chars, last);
+                if (last) decoder.flush(chars);
+                if (result.isError()) result.throwException();
+                // Незаконченный символ на границе части декодируется вместе со следующей частью
+                bytes.compact();
+                chars.flip();
+                carriageReturn = !last && chars.length() > 0 && chars.get(chars.limit() - 1) == '\r';
+                if (carriageReturn) chars.limit(chars.limit() - 1);
+                if (chars.length() > 0) append(chars.toString());
+                updateProgress(Math.min(position, size), size);
+                if (last) break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Передаёт часть текста в поток JavaFX и ждёт, пока она будет добавлена в редактор
+     */
+    private void append(String chunk) throws InterruptedException {
+        CountDownLatch appended = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            try {
+                if (!isCancelled()) appendChunk.accept(chunk);
+            } finally {
+                appended.countDown();
+            }
+        });
+        appended.await();
+    }
+}
@@ -0,0 +1,111 @@
+package prolog;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Сохранение текста в файл в фоновом потоке.
+ * <p>
+ * Текст записывается во временный файл в том же каталоге, сбрасывается на диск и заменяет сохраняемый файл
+ * атомарным перемещением, поэтому при сбое во время записи на диске остаётся либо старое, либо новое содержимое.
+ * Если файл сохраняется повторно, пока предыдущий запрос ещё ждёт очереди, запросы объединяются,
+ * и записывается только последний снимок текста.
+ */
+public class FileSaver {
+    /**
+     * Поток не является фоновым, чтобы начатое сохранение завершилось при закрытии приложения
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "Saving"));
+
+    /**
+     * Запросы, ожидающие записи, по файлам
+     */
+    private final Map<Path, Request> pending = new HashMap<>();
+
+    private static class Request {
+        DocumentSnapshot snapshot;
+        long version;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+    }
+
+    /**
+     * Ставит в очередь сохранение снимка текста. Вызывается из потока JavaFX.
+     *
+     * @param target   Файл
+     * @param snapshot Снимок текста
+     * @param version  Версия текста, для которой сделан снимок
+     * @return Результат сохранения: версия записанного текста. Если запрос объединён с более поздним,
+     * возвращается версия более позднего запроса.
+     */
+    public synchronized CompletableFuture<Long> save(Path target, DocumentSnapshot snapshot, long version) {
+        target = target.toAbsolutePath().normalize();
+        Request request = pending.get(target);
+        if (request == null) {
+            request = new Request();
+            pending.put(target, request);
+            Path file = target;
+            executor.execute(() -> write(file));
+        }
+        request.snapshot = snapshot;
+        request.version = version;
+        return request.future;
+    }
+
+    /**
+     * Останавливает поток после записи уже поставленных в очередь запросов. Метод не ждёт окончания записи,
+     * но поток не является фоновым, поэтому приложение завершается только после неё.
+     */
+    public void close() {
+        executor.shutdown();
+    }
+
+    private void write(Path target) {
+        Request request;
+        synchronized (this) {
+            request = pending.remove(target);
+        }
+        if (request == null) return;
+        try {
+            writeAtomically(target, request.snapshot);
+            request.future.complete(request.version);
+        } catch (IOException | RuntimeException e) {
+            request.future.completeExceptionally(e);
+        }
+    }
+
+    private static void writeAtomically(Path target, DocumentSnapshot snapshot) throws IOException {
+        Path dir = target.getParent();
+        Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        try {
+            // Временный файл создаётся с ограниченными правами, заменённый файл должен сохранить свои
+            if (Files.exists(target)) {
+                try {
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException ignored) {
+                }
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), 64 * 1024)) {
+                snapshot.writeTo(writer);
+                writer.flush();
+                channel.force(true);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
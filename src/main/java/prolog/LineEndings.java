@@ -0,0 +1,23 @@
+package prolog;
+
+import java.util.regex.Pattern;
+
+/**
+ * Переводы строк в тексте редактора.
+ * <p>
+ * Редактор хранит все переводы строк как {@code \n}: {@code \r\n} и одиночный {@code \r} при вставке заменяются.
+ * Позиции в тексте редактора совпадают с позициями в тексте файла только после такой же замены.
+ */
+public final class LineEndings {
+    private static final Pattern LINE_BREAK = Pattern.compile("\r\n?");
+
+    private LineEndings() {
+    }
+
+    /**
+     * @return Текст, в котором переводы строк заменены так же, как в редакторе
+     */
+    public static String normalize(String text) {
+        return text.indexOf('\r') < 0 ? text : LINE_BREAK.matcher(text).replaceAll("\n");
+    }
+}
@@ -9,6 +9,7 @@ import javafx.scene.control.ButtonType;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 public class Main extends Application {
@@ -32,7 +33,7 @@ public class Main extends Application {
             //If cancel, do not close window
             if(result==ButtonType.CANCEL) event.consume();
                 //If Yes, but save failed, do not close window
-            else if(result==ButtonType.YES && !c.saveFile()) event.consume();
+            else if(result==ButtonType.YES && !c.saveFileAndWait()) event.consume();
             //Answer NO or file successfully saved, close window
             else c.close();
         });
@@ -40,8 +41,10 @@ public class Main extends Application {
         List<String> args = getParameters().getRaw();
         if(args.size()>0){
             File file = new File(args.get(0));
-            c.setFile(file);
             primaryStage.setTitle(file.getPath());
+            String recovered = recoverUnsavedChanges(file);
+            if (recovered != null) c.restoreFile(file, recovered);
+            else c.setFile(file);
         }else {
             primaryStage.setTitle(":new file:");
         }
@@ -49,6 +52,25 @@ public class Main extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Предлагает восстановить изменения файла из журнала, оставшегося после аварийного закрытия редактора
+     *
+     * @return Восстановленный текст, или {@code null} если журнала нет или пользователь отказался от восстановления
+     */
+    private static String recoverUnsavedChanges(File file) {
+        try {
+            String recovered = EditJournal.recover(file.toPath());
+            if (recovered == null) return null;
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION, "", ButtonType.YES, ButtonType.NO);
+            alert.setTitle("Unsaved changes found");
+            alert.setHeaderText("The editor was not closed properly. Restore unsaved changes of " + file.getName() + "?");
+            if (alert.showAndWait().orElse(ButtonType.NO) == ButtonType.YES) return recovered;
+            EditJournal.discard(file.toPath());
+        } catch (IOException ignored) {
+        }
+        return null;
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
@@ -1,32 +1,48 @@
 package prolog;
 
 import javafx.scene.control.CheckBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.TextArea;
-import org.fxmisc.richtext.CodeArea;
+import prolog.search.SearchQuery;
+import prolog.search.TextSearch;
+
+import java.util.regex.PatternSyntaxException;
 
 public class SearchDialogController {
     public TextArea textInput;
     public CheckBox matchCaseCB;
-    private CodeArea codeArea;
+    public CheckBox wholeWordCB;
+    public CheckBox regexCB;
+    public Label statusLabel;
+    private TextSearch textSearch;
 
-    public void setCodeArea(CodeArea codeArea) {
-        this.codeArea = codeArea;
+    public void setTextSearch(TextSearch textSearch) {
+        this.textSearch = textSearch;
+        textSearch.setOnUpdate(() -> statusLabel.setText(textSearch.status()));
+        textInput.textProperty().addListener((observable, oldValue, newValue) -> updateSearch());
+        matchCaseCB.selectedProperty().addListener((observable, oldValue, newValue) -> updateSearch());
+        wholeWordCB.selectedProperty().addListener((observable, oldValue, newValue) -> updateSearch());
+        regexCB.selectedProperty().addListener((observable, oldValue, newValue) -> updateSearch());
     }
 
-    public void searchDown() {
-        String text = textInput.getText();
-        String code = codeArea.getText();
+    /**
+     * Запускает поиск всех совпадений с текущими параметрами
+     */
+    public void updateSearch() {
+        SearchQuery query = new SearchQuery(textInput.getText(), matchCaseCB.isSelected(),
+                regexCB.isSelected(), wholeWordCB.isSelected());
+        try {
+            textSearch.search(query);
+        } catch (PatternSyntaxException e) {
+            statusLabel.setText(e.getDescription());
+        }
+    }
 
-        if(text.isEmpty()) return;
+    public void searchDown() {
+        textSearch.next();
+    }
 
-        if(!matchCaseCB.isSelected()) {
-            text = text.toLowerCase();
-            code = code.toLowerCase();
-        }
-        int i = code.indexOf(text, codeArea.getCaretPosition());
-        if (i > 0) {
-            codeArea.selectRange(i, i + text.length());
-            codeArea.requestFollowCaret();
-        }
+    public void searchUp() {
+        textSearch.previous();
     }
 }
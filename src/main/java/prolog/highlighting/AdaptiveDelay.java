@@ -0,0 +1,78 @@
+package prolog.highlighting;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Задержка перед вычислением подсветки, подбираемая по измеренной длительности вычислений.
+ * <p>
+ * Хранит экспоненциально сглаженную длительность вычисления подсветки на один символ текста.
+ * Задержка растёт с ожидаемой длительностью вычисления для текущего размера документа:
+ * быстрая подсветка лексером запускается почти сразу после ввода, а долгий семантический анализ
+ * откладывается до паузы в наборе текста, но не дольше максимальной задержки.
+ * Методы вызываются из потока JavaFX.
+ */
+public class AdaptiveDelay {
+    /**
+     * Минимальная задержка в миллисекундах
+     */
+    private static final long MIN_DELAY_MILLIS = 20;
+
+    /**
+     * Во сколько раз задержка больше ожидаемой длительности вычисления
+     */
+    private static final int COST_FACTOR = 2;
+
+    /**
+     * Вес последнего замера в сглаженном значении
+     */
+    private static final double ALPHA = 0.3;
+
+    private long maxDelayMillis;
+
+    /**
+     * Сглаженная длительность вычисления в наносекундах на символ, или отрицательное значение, пока замеров не было
+     */
+    private double nanosPerChar = -1;
+
+    /**
+     * @param maxDelayMillis Максимальная задержка в миллисекундах
+     */
+    public AdaptiveDelay(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Учитывает длительность вычисления подсветки
+     *
+     * @param nanos  Длительность вычисления
+     * @param length Длина текста
+     */
+    public void record(long nanos, int length) {
+        double sample = (double) nanos / Math.max(1, length);
+        nanosPerChar = nanosPerChar < 0 ? sample : ALPHA * sample + (1 - ALPHA) * nanosPerChar;
+    }
+
+    /**
+     * Забывает замеры, например, при смене объекта подсветки
+     */
+    public void reset() {
+        nanosPerChar = -1;
+    }
+
+    /**
+     * @param length Длина текста
+     * @return Задержка перед вычислением подсветки текста такой длины.
+     * Пока замеров не было, возвращается максимальная задержка.
+     */
+    public Duration delay(int length) {
+        if (nanosPerChar < 0) return Duration.ofMillis(maxDelayMillis);
+        long expectedMillis = TimeUnit.NANOSECONDS.toMillis((long) (nanosPerChar * length));
+        long delay = MIN_DELAY_MILLIS + COST_FACTOR * expectedMillis;
+        return Duration.ofMillis(Math.min(Math.max(delay, MIN_DELAY_MILLIS), Math.max(maxDelayMillis, MIN_DELAY_MILLIS)));
+    }
+}
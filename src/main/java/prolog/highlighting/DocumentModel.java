@@ -0,0 +1,298 @@
+package prolog.highlighting;
+
+import prolog.latency.Phase;
+import ru.prolog.syntaxmodel.TokenType;
+import ru.prolog.syntaxmodel.recognizers.Lexer;
+import ru.prolog.syntaxmodel.tree.AbstractNode;
+import ru.prolog.syntaxmodel.tree.Node;
+import ru.prolog.syntaxmodel.tree.Token;
+import ru.prolog.syntaxmodel.tree.misc.NodeError;
+import ru.prolog.syntaxmodel.tree.nodes.modules.ProgramNode;
+import ru.prolog.syntaxmodel.tree.semantics.SemanticAnalyzer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Общая модель документа для всех видов подсветки.
+ * <p>
+ * Хранит результаты анализа текста по уровням: список токенов, дерево разбора с ошибками узлов
+ * и результаты семантического анализа дерева. Каждый уровень помнит текст, для которого он построен,
+ * и вычисляется заново только если запрошен для другого текста. Поэтому при смене вида подсветки
+ * уже вычисленные уровни используются повторно, а список токенов может быть взят из дерева разбора без
+ * повторного лексического анализа.
+ * <p>
+ * Методы вызываются из потока подсветки. Запросы для всплывающих сообщений и контекстного меню
+ * выполняются в потоке JavaFX только после применения результата подсветки, пока текст не изменился.
+ */
+public class DocumentModel {
+    /**
+     * Список токенов со смещениями
+     */
+    private final TokenOffsetIndex tokenIndex = new TokenOffsetIndex();
+
+    /**
+     * Текст, для которого построен {@link #tokenIndex}, или {@code null} если список токенов устарел
+     */
+    private String tokensText;
+
+    /**
+     * Список токенов состоит из токенов дерева разбора
+     */
+    private boolean tokensFromTree;
+
+    private ProgramNode tree;
+    private Lexer treeLexer;
+
+    /**
+     * Текст, для которого построено {@link #tree}, или {@code null} если дерево устарело
+     */
+    private String treeText;
+
+    /**
+     * Ошибки узлов дерева, относящиеся к токенам
+     */
+    private final Map<Token, String> nodeErrors = new HashMap<>();
+
+    /**
+     * Для дерева выполнен семантический анализ
+     */
+    private boolean analyzed;
+
+    /**
+     * После семантического анализа дерево изменено так, что результаты анализа устарели
+     */
+    private boolean analysisStale;
+
+    /**
+     * Токены дерева изменены заранее, и следующий текст документа должен соответствовать дереву.
+     * Устанавливается и сбрасывается в потоке подсветки.
+     */
+    private volatile boolean treeEditedAhead;
+
+    /**
+     * Возвращает список токенов для текста, если он уже вычислен или может быть взят из дерева разбора.
+     *
+     * @param text Текст
+     * @return Список токенов, или {@code null} если текст нужно разобрать лексером
+     */
+    TokenOffsetIndex tokens(String text) {
+        if (sameText(tokensText, text)) return tokenIndex;
+        if (treeLexer == null || !sameText(treeText, text)) return null;
+        List<Token> tokens = new ArrayList<>();
+        treeLexer.setPointer(null);
+        while (!treeLexer.isEnd()) {
+            Token token = treeLexer.nextToken();
+            if (token == null) break;
+            tokens.add(token);
+        }
+        tokenIndex.reset(tokens);
+        tokensText = text;
+        tokensFromTree = true;
+        return tokenIndex;
+    }
+
+    /**
+     * @return {@code true} если список токенов {@link #tokenIndex()} соответствует последнему разобранному тексту
+     */
+    boolean hasTokens() {
+        return tokensText != null;
+    }
+
+    /**
+     * @return Список токенов, построенный последним, для инкрементального лексического анализа
+     */
+    TokenOffsetIndex tokenIndex() {
+        return tokenIndex;
+    }
+
+    /**
+     * Отмечает, что список токенов {@link #tokenIndex()} изменён лексером и соответствует тексту.
+     *
+     * @param text        Текст
+     * @param incremental Лексер изменил уже существующие токены, а не создал новый список
+     */
+    void tokensUpdated(String text, boolean incremental) {
+        // Токены, общие с деревом, изменены лексером, поэтому дерево больше не соответствует никакому тексту
+        if (incremental && tokensFromTree) treeText = null;
+        if (!incremental) tokensFromTree = false;
+        tokensText = text;
+    }
+
+    /**
+     * Возвращает дерево разбора текста, строя его, если оно ещё не построено для этого текста.
+     *
+     * @param text Текст
+     * @return Дерево разбора
+     */
+    ProgramNode tree(String text) {
+        if (tree == null || !sameText(treeText, text)) parse(text);
+        return tree;
+    }
+
+    /**
+     * @return Последнее построенное дерево разбора, или {@code null}
+     */
+    ProgramNode currentTree() {
+        return tree;
+    }
+
+    /**
+     * @return Текст, которому соответствует дерево разбора, или {@code null} если дерево устарело
+     */
+    String treeText() {
+        return treeText;
+    }
+
+    /**
+     * @return Лексер, которым построено дерево разбора. Используется для перебора токенов дерева.
+     */
+    Lexer treeLexer() {
+        return treeLexer;
+    }
+
+    /**
+     * @return Ошибки узлов дерева разбора, относящиеся к токенам
+     */
+    Map<Token, String> nodeErrors() {
+        return nodeErrors;
+    }
+
+    /**
+     * Возвращает дерево разбора текста с результатами семантического анализа,
+     * выполняя разбор и анализ только если они ещё не выполнены для этого текста.
+     *
+     * @param text Текст
+     * @return Дерево разбора
+     */
+    ProgramNode analyzedTree(String text) {
+        tree(text);
+        // Анализ сохраняет результаты в узлах дерева, поэтому устаревшие результаты заменяются только разбором заново
+        if (analysisStale) parse(text);
+        if (!analyzed) {
+            long start = System.nanoTime();
+            new SemanticAnalyzer(tree).performSemanticAnalysis();
+            Phase.SEMANTIC_ANALYSIS.record(start);
+            analyzed = true;
+        }
+        return tree;
+    }
+
+    /**
+     * Применяет изменение текста к дереву разбора без повторного парсинга, если изменение не меняет структуру дерева.
+     *
+     * @param change   Изменение текста
+     * @param text     Новый текст
+     * @param editable Условие, при котором токен можно изменить без повторного разбора
+     * @return Изменённый токен, или {@code null} если дерево нужно построить заново
+     */
+    Token editTree(TextChange change, String text, Predicate<Token> editable) {
+        if (tree == null || treeText == null) return null;
+        Token edited = TokenEdit.apply(tree, change, text, editable);
+        if (edited == null) return null;
+        treeText = text;
+        if (tokensFromTree) tokensText = null;
+        if (analyzed && !keepsSemantics(edited)) analysisStale = true;
+        return edited;
+    }
+
+    /**
+     * Отмечает, что текст токенов дерева изменён напрямую, и изменение будет внесено в редактор следующим.
+     * Вызывается в потоке подсветки до вычисления подсветки изменённого текста.
+     *
+     * @param keepsAnalysis Изменение не меняет результатов семантического анализа
+     */
+    void treeEdited(boolean keepsAnalysis) {
+        treeText = null;
+        if (tokensFromTree) tokensText = null;
+        if (!keepsAnalysis) analysisStale = true;
+        treeEditedAhead = true;
+    }
+
+    /**
+     * Принимает дерево, изменённое через {@link #treeEdited(boolean)}, как дерево разбора нового текста.
+     *
+     * @param text Текст документа после изменения
+     * @return {@code true} если дерево было изменено заранее и соответствует тексту
+     */
+    boolean acceptEditedTree(String text) {
+        if (!treeEditedAhead) return false;
+        treeEditedAhead = false;
+        if (tree == null || tree.length() != text.length()) return false;
+        treeText = text;
+        return true;
+    }
+
+    /**
+     * Помечает все уровни устаревшими, чтобы при следующем запросе они были вычислены заново
+     */
+    public void clear() {
+        tokensText = null;
+        treeText = null;
+        treeEditedAhead = false;
+    }
+
+    /**
+     * Проверяет, что изменение текста токена не меняет результатов семантического анализа.
+     * Анализ связывает объявления, реализации и использования по именам, поэтому изменение имён и переменных
+     * требует повторного анализа. Текст остальных токенов (комментарии, пробелы, числа, строки) на связи не влияет.
+     * <p>
+     * Ограничение: {@link SemanticAnalyzer} анализирует только всё дерево целиком и хранит результаты в узлах,
+     * поэтому повторно проверить только предложение, в котором изменено имя или переменная, нельзя.
+     * Любое изменение имени или переменной приводит к полному анализу документа. На больших документах
+     * во время набора в этом случае используется подсветка лексером, а полная подсветка вычисляется в паузе.
+     */
+    static boolean keepsSemantics(Token token) {
+        return token.getTokenType() != TokenType.SYMBOL && token.getTokenType() != TokenType.VARIABLE;
+    }
+
+    private void parse(String text) {
+        long start = System.nanoTime();
+        nodeErrors.clear();
+        // Токены старого дерева не меняются при разборе, поэтому список токенов остаётся верным для своего текста
+        tokensFromTree = false;
+        treeLexer = new Lexer(text);
+        tree = new ProgramNode(null);
+        tree.parse(treeLexer);
+        collectNodeErrors(tree);
+        treeText = text;
+        // Дерево, изменённое заранее, заменено, и принимать его для следующего текста нельзя.
+        // Если флаг сброшен заданием, начатым до изменения, следующее задание просто разберёт текст заново.
+        treeEditedAhead = false;
+        analyzed = false;
+        analysisStale = false;
+        Phase.PARSING.record(start);
+    }
+
+    private void collectNodeErrors(AbstractNode node) {
+        for (Map.Entry<Node, NodeError> nodeError : node.getErrors().entrySet()) {
+            String text = nodeError.getValue().getText();
+            Node key = nodeError.getKey();
+            if (nodeError.getValue().isAfter()) {
+                Token token = key.lastToken();
+                addTokenError(token, text);
+            } else {
+                key.tokens().forEach(token -> addTokenError(token, text));
+            }
+        }
+        node.children().stream()
+                .filter(n -> n instanceof AbstractNode)
+                .map(n -> (AbstractNode) n)
+                .forEach(this::collectNodeErrors);
+    }
+
+    private void addTokenError(Token token, String error) {
+        if (nodeErrors.containsKey(token)) {
+            nodeErrors.put(token, nodeErrors.get(token) + '\n' + error);
+        } else {
+            nodeErrors.put(token, error);
+        }
+    }
+
+    private static boolean sameText(String cached, String text) {
+        return cached != null && (cached == text || cached.equals(text));
+    }
+}
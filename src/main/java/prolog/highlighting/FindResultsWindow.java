@@ -0,0 +1,193 @@
+package prolog.highlighting;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.input.KeyCode;
+import javafx.scene.text.Text;
+import javafx.scene.text.TextFlow;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+import org.fxmisc.richtext.CodeArea;
+import ru.prolog.syntaxmodel.tree.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Окно со списком найденных узлов: объявлений, реализаций или использований.
+ * <p>
+ * Результаты строятся в потоке подсветки, пока дерево разбора не изменяется: для каждого узла запоминаются
+ * позиция, номер строки и фрагмент строки документа. Окно не хранит узлы дерева и не обращается к ним
+ * в потоке JavaFX. Результаты передаются в окно частями по мере построения, поэтому окно появляется сразу
+ * даже при тысячах результатов. Список отображается в {@link ListView}, который создаёт строки
+ * только для видимой части списка.
+ */
+class FindResultsWindow {
+    /**
+     * Количество результатов, передаваемых в окно за один раз
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Количество символов строки, отображаемых до и после найденного узла
+     */
+    private static final int CONTEXT_LENGTH = 80;
+
+    private final CodeArea codeArea;
+    private final Stage stage = new Stage();
+    private final ListView<Result> listView = new ListView<>();
+    private volatile boolean closed;
+
+    /**
+     * Найденный узел в тексте, для которого построены результаты
+     */
+    static final class Result {
+        final int start;
+        final int end;
+        /**
+         * Номер строки, начиная с нуля
+         */
+        final int line;
+        final String before;
+        final String match;
+        final String after;
+
+        Result(int start, int end, int line, String before, String match, String after) {
+            this.start = start;
+            this.end = end;
+            this.line = line;
+            this.before = before;
+            this.match = match;
+            this.after = after;
+        }
+    }
+
+    /**
+     * @param codeArea Редактор, в котором найдены узлы
+     * @param title    Заголовок окна
+     */
+    FindResultsWindow(CodeArea codeArea, String title) {
+        this.codeArea = codeArea;
+        stage.setTitle(title);
+        stage.initModality(Modality.NONE);
+        listView.setCellFactory(view -> new ResultCell());
+        listView.setOnMouseClicked(event -> goToSelected());
+        listView.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.ENTER) goToSelected();
+        });
+        stage.setScene(new Scene(listView, 300, 200));
+    }
+
+    /**
+     * Показывает пустое окно. Результаты добавляются методом {@link #collect(String, Collection)}.
+     */
+    void show() {
+        stage.show();
+    }
+
+    void close() {
+        closed = true;
+        stage.close();
+    }
+
+    /**
+     * Строит результаты в порядке следования в тексте и передаёт их в окно частями.
+     * Вызывается в потоке подсветки, пока дерево, которому принадлежат узлы, не изменяется.
+     *
+     * @param text  Текст, для которого построено дерево
+     * @param nodes Найденные узлы
+     */
+    void collect(String text, Collection<Node> nodes) {
+        int count = nodes.size();
+        int[] starts = new int[count];
+        int[] ends = new int[count];
+        List<Integer> order = new ArrayList<>(count);
+        int i = 0;
+        for (Node node : nodes) {
+            starts[i] = Math.max(0, Math.min(node.startPos(), text.length()));
+            ends[i] = Math.max(starts[i], Math.min(starts[i] + node.firstToken().length(), text.length()));
+            order.add(i++);
+        }
+        order.sort(Comparator.comparingInt(index -> starts[index]));
+
+        // Номера строк считаются одним проходом по тексту, так как результаты упорядочены по позиции
+        int line = 0;
+        int lineStart = 0;
+        int scanned = 0;
+        List<Result> batch = new ArrayList<>(BATCH_SIZE);
+        for (int index : order) {
+            if (closed) return;
+            int start = starts[index];
+            for (; scanned < start; scanned++) {
+                if (text.charAt(scanned) == '\n') {
+                    line++;
+                    lineStart = scanned + 1;
+                }
+            }
+            int lineEnd = text.indexOf('\n', start);
+            if (lineEnd < 0) lineEnd = text.length();
+            int matchEnd = Math.min(ends[index], lineEnd);
+            int from = Math.max(lineStart, start - CONTEXT_LENGTH);
+            int to = Math.min(lineEnd, matchEnd + CONTEXT_LENGTH);
+            batch.add(new Result(start, ends[index], line,
+                    text.substring(from, start).replace('\t', ' '),
+                    text.substring(start, matchEnd),
+                    text.substring(matchEnd, to).replace('\t', ' ')));
+            if (batch.size() == BATCH_SIZE) {
+                publish(batch);
+                batch = new ArrayList<>(BATCH_SIZE);
+            }
+        }
+        publish(batch);
+    }
+
+    private void publish(List<Result> batch) {
+        if (batch.isEmpty()) return;
+        Platform.runLater(() -> {
+            if (!closed) listView.getItems().addAll(batch);
+        });
+    }
+
+    private void goToSelected() {
+        Result result = listView.getSelectionModel().getSelectedItem();
+        if (result == null) return;
+        // После изменения текста позиции результата могут выходить за его конец
+        int start = Math.min(result.start, codeArea.getLength());
+        codeArea.selectRange(start, Math.min(result.end, codeArea.getLength()));
+        codeArea.requestFollowCaret();
+    }
+
+    /**
+     * Строка списка: номер строки документа и фрагмент строки с выделенным найденным узлом
+     */
+    private static class ResultCell extends ListCell<Result> {
+        private final Text lineNumber = new Text();
+        private final Text before = new Text();
+        private final Text match = new Text();
+        private final Text after = new Text();
+        private final TextFlow textFlow = new TextFlow(lineNumber, before, match, after);
+
+        ResultCell() {
+            textFlow.setStyle("-fx-font-family: monospace;");
+            match.setStyle("-fx-fill: seagreen; -fx-font-weight: bold;");
+        }
+
+        @Override
+        protected void updateItem(Result item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setGraphic(null);
+                return;
+            }
+            lineNumber.setText((item.line + 1) + ": ");
+            before.setText(item.before);
+            match.setText(item.match);
+            after.setText(item.after);
+            setGraphic(textFlow);
+        }
+    }
+}
@@ -13,10 +13,12 @@ public interface Highlighter {
     /**
      * Вычисляет подсветку синтаксиса для изменившегося кода в редакторе
      *
-     * @param text Текст в редакторе
+     * @param text   Текст в редакторе
+     * @param change Изменение текста с момента предыдущего вычисления подсветки,
+     *               или {@code null} если изменение неизвестно и подсветку нужно вычислить для всего текста
      * @return Разметка синтаксиса для изменившегося текста
      */
-    HighlightingResult computeHighlighting(String text);
+    HighlightingResult computeHighlighting(String text, TextChange change);
 
     /**
      * Вычисляет подсветку синтаксиса для всего кода в редакторе
@@ -0,0 +1,84 @@
+package prolog.highlighting;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Допустимая длительность вычисления подсветки по дереву разбора.
+ * <p>
+ * Если подсветка по дереву разбора или семантическая подсветка вычисляется дольше допустимого,
+ * при наборе текста используется подсветка по лексемам, а полная подсветка вычисляется только во время простоя.
+ * Полная подсветка возвращается, когда её вычисление во время простоя снова укладывается в половину допустимой
+ * длительности, или когда документ становится заметно короче, чем при превышении.
+ * Все методы вызываются из потока JavaFX.
+ */
+public class HighlightingBudget {
+    /**
+     * Допустимая длительность вычисления подсветки при наборе текста
+     */
+    private static final long BUDGET_NANOS = TimeUnit.MILLISECONDS.toNanos(150);
+
+    /**
+     * Доля допустимой длительности, в которую должно уложиться вычисление для возврата полной подсветки
+     */
+    private static final double RESTORE_RATIO = 0.5;
+
+    /**
+     * Доля длины документа при превышении, до которой документ должен сократиться для возврата полной подсветки
+     */
+    private static final double SHRINK_RATIO = 0.8;
+
+    private boolean exceeded;
+
+    /**
+     * Длина документа, при которой было превышено допустимое время
+     */
+    private int exceededLength;
+
+    /**
+     * @return {@code true} если при наборе текста следует использовать подсветку по лексемам
+     */
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Учитывает длительность вычисления полной подсветки
+     *
+     * @param nanos  Длительность вычисления
+     * @param length Длина текста
+     * @return {@code true} если изменилось решение об использовании подсветки по лексемам
+     */
+    public boolean record(long nanos, int length) {
+        if (!exceeded && nanos > BUDGET_NANOS) {
+            exceeded = true;
+            exceededLength = length;
+            return true;
+        }
+        if (exceeded && nanos < BUDGET_NANOS * RESTORE_RATIO) {
+            exceeded = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает полную подсветку, если документ стал заметно короче, чем при превышении допустимого времени
+     *
+     * @param length Текущая длина документа
+     * @return {@code true} если решение об использовании подсветки по лексемам изменилось
+     */
+    public boolean checkLength(int length) {
+        if (exceeded && length < exceededLength * SHRINK_RATIO) {
+            exceeded = false;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Забывает превышение, например, при смене объекта подсветки
+     */
+    public void reset() {
+        exceeded = false;
+    }
+}
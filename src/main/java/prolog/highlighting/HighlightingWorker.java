@@ -0,0 +1,172 @@
+package prolog.highlighting;
+
+import javafx.application.Platform;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Фоновый поток вычисления подсветки синтаксиса.
+ * <p>
+ * Каждое задание получает снимок текста и номер версии документа, в которой этот снимок был сделан.
+ * Снимок превращается в строку в фоновом потоке и только для заданий, которые не устарели до запуска.
+ * Задание, которое устарело до запуска, не выполняется, а его изменение текста передаётся следующему заданию.
+ * Результат задания передаётся в поток JavaFX только если версия документа не изменилась за время вычисления.
+ */
+public class HighlightingWorker {
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Highlighting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Слушатели, которым передаются длительности вычислений
+     */
+    private final List<CostListener> costListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Текущая версия документа
+     */
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Пропущенные устаревшие задания для каждого объекта подсветки. Передаются следующему заданию того же объекта,
+     * чтобы инкрементальная подсветка учитывала все изменения. Используется только из фонового потока.
+     */
+    private final Map<Highlighter, SkippedJob> skippedJobs = new WeakHashMap<>();
+
+    /**
+     * Признак того, что результат последнего вычисленного задания был применён к тексту.
+     * Если результат был отброшен, инкрементальное состояние подсветчика не совпадает с тем, что видно в редакторе,
+     * и следующее задание пересчитывает подсветку для всего текста. Используется только из фонового потока.
+     */
+    private CompletableFuture<Boolean> lastApplied = CompletableFuture.completedFuture(true);
+
+    private volatile Consumer<RuntimeException> onError = e -> {
+    };
+
+    /**
+     * Добавляет слушателя длительностей вычислений. Слушатель вызывается в фоновом потоке.
+     */
+    public void addCostListener(CostListener listener) {
+        costListeners.add(listener);
+    }
+
+    /**
+     * @param onError Обработчик ошибок вычисления подсветки. Вызывается в потоке JavaFX.
+     */
+    public void setOnError(Consumer<RuntimeException> onError) {
+        this.onError = onError;
+    }
+
+    /**
+     * Помечает все поставленные и выполняющиеся задания устаревшими.
+     * Вызывается из потока JavaFX при изменении текста или смене подсветки.
+     *
+     * @return Новая версия документа
+     */
+    public long invalidate() {
+        return version.incrementAndGet();
+    }
+
+    /**
+     * Ставит в очередь вычисление подсветки для снимка текста. Вызывается из потока JavaFX.
+     *
+     * @param highlighter Объект подсветки
+     * @param snapshot    Снимок текста в редакторе. Не должен изменяться после постановки задания в очередь.
+     * @param change      Изменение текста с момента постановки в очередь предыдущего задания
+     * @param full        Вычислить подсветку для всего текста, а не только для изменившейся части
+     * @param onResult    Обработчик результата. Вызывается в потоке JavaFX, только если документ не изменился.
+     */
+    public void submit(Highlighter highlighter, CharSequence snapshot, TextChange change, boolean full,
+                       Consumer<Highlighter.HighlightingResult> onResult) {
+        long snapshotVersion = version.get();
+        executor.execute(() -> {
+            SkippedJob skipped = skippedJobs.remove(highlighter);
+            TextChange accumulatedChange = skipped == null ? change : TextChange.merge(skipped.change, change);
+            boolean accumulatedFull = full || skipped != null && skipped.full;
+            if (version.get() != snapshotVersion) {
+                skippedJobs.put(highlighter, new SkippedJob(accumulatedChange, accumulatedFull));
+                return;
+            }
+            boolean computeFull = accumulatedFull || !lastApplied.join();
+            String text = snapshot.toString();
+            Highlighter.HighlightingResult result;
+            long start = System.nanoTime();
+            try {
+                result = computeFull
+                        ? new Highlighter.HighlightingResult(0, highlighter.computeHighlightingFull(text))
+                        : highlighter.computeHighlighting(text, accumulatedChange);
+            } catch (RuntimeException e) {
+                // Состояние подсветчика после ошибки неизвестно, следующее задание пересчитает весь текст
+                lastApplied = CompletableFuture.completedFuture(false);
+                Consumer<RuntimeException> handler = onError;
+                Platform.runLater(() -> handler.accept(e));
+                return;
+            }
+            long nanos = System.nanoTime() - start;
+            for (CostListener listener : costListeners) listener.computed(highlighter, nanos, text.length());
+            CompletableFuture<Boolean> applied = new CompletableFuture<>();
+            lastApplied = applied;
+            Platform.runLater(() -> {
+                boolean actual = version.get() == snapshotVersion;
+                try {
+                    if (actual) onResult.accept(result);
+                } catch (RuntimeException e) {
+                    actual = false;
+                    throw e;
+                } finally {
+                    applied.complete(actual);
+                }
+            });
+        });
+    }
+
+    /**
+     * Выполняет действие в фоновом потоке после уже поставленных заданий и до заданий, поставленных позже.
+     * Используется для изменения состояния подсветки, которое читается при вычислении.
+     */
+    public void execute(Runnable action) {
+        executor.execute(action);
+    }
+
+    /**
+     * Останавливает фоновый поток
+     */
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class SkippedJob {
+        final TextChange change;
+        /**
+         * Среди пропущенных было задание вычисления подсветки для всего текста
+         */
+        final boolean full;
+
+        SkippedJob(TextChange change, boolean full) {
+            this.change = change;
+            this.full = full;
+        }
+    }
+
+    /**
+     * Слушатель длительностей вычисления подсветки
+     */
+    public interface CostListener {
+        /**
+         * @param highlighter Объект подсветки, выполнивший вычисление
+         * @param nanos       Длительность вычисления
+         * @param length      Длина текста
+         */
+        void computed(Highlighter highlighter, long nanos, int length);
+    }
+}
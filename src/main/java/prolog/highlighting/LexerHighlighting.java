@@ -3,10 +3,11 @@ package prolog.highlighting;
 import javafx.scene.control.ContextMenu;
 import org.fxmisc.richtext.model.StyleSpans;
 import org.fxmisc.richtext.model.StyleSpansBuilder;
+import prolog.latency.Phase;
 import ru.prolog.syntaxmodel.recognizers.Lexer;
 import ru.prolog.syntaxmodel.tree.Token;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -15,138 +16,118 @@ import java.util.List;
  * Подсветка по лексемам
  */
 public class LexerHighlighting implements Highlighter {
-    /**
-     * Последний обработанный код
-     */
-    protected String lastParsedCode = "";
+    private final DocumentModel model;
 
     /**
-     * Первый токен при последнем парсинге
+     * Токены, полученные при последнем парсинге, с их смещениями в тексте
      */
-    protected Token firstToken;
+    private final TokenOffsetIndex tokenIndex;
+
+    public LexerHighlighting() {
+        this(new DocumentModel());
+    }
 
     /**
-     * Последний токен при последнем парсинге
+     * @param model Модель документа, общая для всех видов подсветки
      */
-    protected Token lastToken;
+    public LexerHighlighting(DocumentModel model) {
+        this.model = model;
+        this.tokenIndex = model.tokenIndex();
+    }
 
     @Override
-    public HighlightingResult computeHighlighting(String text) {
+    public HighlightingResult computeHighlighting(String text, TextChange change) {
         if (text.isEmpty()) {
-            firstToken = null;
-            lastToken  =null;
-            lastParsedCode = text;
+            tokenIndex.reset(Collections.emptyList());
+            model.tokensUpdated(text, false);
             return new HighlightingResult(0, StyleSpans.singleton(Collections.emptyList(), 0));
         }
 
-        ChangedCode changed = computeChange(text);
+        long start = System.nanoTime();
+        ChangedCode changed = computeChange(text, change);
         Lexer lexer = getLexerForChangedText(text, changed);
-        if(changed == null || changed.before == null) firstToken = null;
-        if(changed == null || changed.after == null) lastToken = null;
-        StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
         int tokensLength = 0;
-        Token lastParsed = null;
+        List<Token> parsedTokens = new ArrayList<>();
         while (!lexer.isClosed()) {
             Token token = lexer.nextToken();
             if (token == null) break;
-            if (token.getTokenType() == null) {
-                addSpan(spansBuilder, token, "unknown", tokensLength);
-            } else {
-                switch (token.getTokenType()) {
-                    case LB:
-                    case RB:
-                        addSpan(spansBuilder, token, "bracket", tokensLength);
-                        break;
-                    case RSQB:
-                    case LSQB:
-                    case TAILSEP:
-                        addSpan(spansBuilder, token, "sbracket", tokensLength);
-                        break;
-                    case DOT:
-                    case COMMA:
-                    case SEMICOLON:
-                    case IF_SIGN:
-                    case IF_KEYWORD:
-                    case AND_KEYWORD:
-                    case OR_KEYWORD:
-                        addSpan(spansBuilder, token, "rule_sep", tokensLength);
-                        break;
-                    case SINGLE_COMMENT:
-                    case MULTILINE_COMMENT:
-                        addSpan(spansBuilder, token, "comment", tokensLength);
-                        break;
-                    case INTEGER:
-                    case REAL:
-                        addSpan(spansBuilder, token, "number", tokensLength);
-                        break;
-                    case STRING:
-                    case CHAR:
-                        addSpan(spansBuilder, token, "string", tokensLength);
-                        break;
-                    case VARIABLE:
-                        addSpan(spansBuilder, token, "variable", tokensLength);
-                        break;
-                    case SYMBOL:
-                    case CUT_SIGN:
-                        addSpan(spansBuilder, token, "name", tokensLength);
-                        break;
-                    case ANONYMOUS:
-                        addSpan(spansBuilder, token, "anonymous", tokensLength);
-                        break;
-                    case INCLUDE_KEYWORD:
-                    case DOMAINS_KEYWORD:
-                    case DATABASE_KEYWORD:
-                    case PREDICATES_KEYWORD:
-                    case CLAUSES_KEYWORD:
-                    case GOAL_KEYWORD:
-                        addSpan(spansBuilder, token, "header", tokensLength);
-                        break;
-                    case STAR_MULTIPLY:
-                    case PLUS:
-                    case MINUS:
-                    case DIVIDE:
-                    case GREATER:
-                    case LESSER:
-                    case EQUALS:
-                        addSpan(spansBuilder, token, "math", tokensLength);
-                        break;
-                    default:
-                        spansBuilder.add(Collections.emptyList(), token.length());
-                }
-            }
             tokensLength += token.length();
-            if (firstToken == null) firstToken = token;
-            lastParsed = token;
+            parsedTokens.add(token);
         }
-        if (lastToken == null) {
-            lastToken = lastParsed;
+        updateTokenIndex(text, changed, parsedTokens);
+        Phase.LEXING.record(start);
+
+        // Разметка строится отдельным проходом, чтобы время построения не входило во время лексического анализа
+        start = System.nanoTime();
+        StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
+        for (Token token : parsedTokens) {
+            spansBuilder.add(tokenStyles(token), token.length());
         }
         if (tokensLength == 0) {
             spansBuilder.add(Collections.emptyList(), 0);
         }
-        lastParsedCode = text;
-        if(changed == null) return new HighlightingResult(0, spansBuilder.create());
-        return new HighlightingResult(changed.firstChanged, spansBuilder.create());
+        StyleSpans<Collection<String>> styleSpans = spansBuilder.create();
+        Phase.SPAN_BUILDING.record(start);
+        if(changed == null) return new HighlightingResult(0, styleSpans);
+        return new HighlightingResult(changed.firstChanged, styleSpans);
+    }
+
+    /**
+     * Заменяет в индексе токены изменившегося участка на новые
+     *
+     * @param text         Разобранный текст
+     * @param changed      Изменившийся участок, или {@code null} если разбирался весь текст
+     * @param parsedTokens Токены, полученные при разборе изменившегося участка
+     */
+    private void updateTokenIndex(String text, ChangedCode changed, List<Token> parsedTokens) {
+        model.tokensUpdated(text, changed != null);
+        if (changed == null) {
+            tokenIndex.reset(parsedTokens);
+            return;
+        }
+        if (changed.after == null || parsedTokens.isEmpty()
+                || parsedTokens.get(parsedTokens.size() - 1).getNext() == changed.after) {
+            tokenIndex.replace(changed.beforeIndex + 1, changed.afterIndex, parsedTokens);
+            return;
+        }
+        // Лексер не остановился на старом токене после изменения. Перестраиваем индекс по списку токенов.
+        List<Token> allTokens = new ArrayList<>();
+        Token token = changed.before == null ? parsedTokens.get(0) : tokenIndex.get(0);
+        for (; token != null; token = token.getNext()) allTokens.add(token);
+        tokenIndex.reset(allTokens);
     }
 
     @Override
     public StyleSpans<Collection<String>> computeHighlightingFull(String text) {
-        lastParsedCode = "";
-        firstToken = null;
-        lastToken = null;
-        return computeHighlighting(text).styleSpans;
+        if (!text.isEmpty() && model.tokens(text) != null) {
+            // Токены этого текста уже получены лексером или при построении дерева разбора
+            long start = System.nanoTime();
+            StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
+            for (int i = 0; i < tokenIndex.size(); i++) {
+                Token token = tokenIndex.get(i);
+                spansBuilder.add(tokenStyles(token), token.length());
+            }
+            if (tokenIndex.size() == 0) spansBuilder.add(Collections.emptyList(), 0);
+            StyleSpans<Collection<String>> styleSpans = spansBuilder.create();
+            Phase.SPAN_BUILDING.record(start);
+            return styleSpans;
+        }
+        return computeHighlighting(text, null).styleSpans;
+    }
+
+    private static Collection<String> tokenStyles(Token token) {
+        int base = TokenStyles.baseOf(token.getTokenType());
+        int flags = base != TokenStyles.NONE && token.isPartial() ? TokenStyles.ERROR : 0;
+        return TokenStyles.get(base, flags);
     }
 
     @Override
     public String getMessageForPos(int pos) {
-        Token token = firstToken;
-        for (int i = 0; token != null; i += token.length(), token = token.getNext()) {
-            if (i <= pos && i + token.length() > pos) {
-                if(token.getTokenType() == null) return "Unknown character " + token.getText();
-                if (token.getHint() != null) return token.getHint().errorText;
-                return null;
-            }
-        }
+        int index = tokenIndex.indexAt(pos);
+        if (index < 0) return null;
+        Token token = tokenIndex.get(index);
+        if(token.getTokenType() == null) return "Unknown character " + token.getText();
+        if (token.getHint() != null) return token.getHint().errorText;
         return null;
     }
 
@@ -165,45 +146,39 @@ public class LexerHighlighting implements Highlighter {
 
     }
 
-    protected ChangedCode computeChange(String newText) {
-        String oldText = lastParsedCode;
-        if (oldText.isEmpty()) return null;
+    /**
+     * Находит участок текста, который нужно разобрать заново.
+     * Участок расширяется до границ токенов, затронутых изменением.
+     *
+     * @param newText Новый текст
+     * @param change  Изменение текста с момента предыдущего разбора
+     * @return Изменившийся участок, или {@code null} если нужно разобрать весь текст
+     */
+    protected ChangedCode computeChange(String newText, TextChange change) {
+        if (change == null || !model.hasTokens()) return null;
+        if (tokenIndex.length() + change.lengthDelta() != newText.length()) return null;
 
         // Индекс первого изменившегося символа в коде (с начала текста)
-        int firstChanged;
-        for (firstChanged = 0; firstChanged < oldText.length() && firstChanged < newText.length(); firstChanged++) {
-            if (oldText.charAt(firstChanged) != newText.charAt(firstChanged)) break;
-        }
-
-        // Индекс последнего изменившегося символа в коде (с конца текста)
-        int lastChanged;
-        for (lastChanged = 0; lastChanged < oldText.length() - firstChanged && lastChanged < newText.length() - firstChanged; lastChanged++) {
-            if (oldText.charAt(oldText.length() - 1 - lastChanged) != newText.charAt(newText.length() - 1 - lastChanged))
-                break;
-        }
-
-        Token before = firstToken;
-        if (before != null) {
-            for (int i = 0; i < newText.length(); i += before.length(), before = before.getNext()) {
-                if (before.getNext() == null || i + before.length() >= firstChanged) {
-                    before = before.getPrev();
-                    firstChanged = i;
-                    break;
-                }
-            }
-        }
-
-        Token after = lastToken;
-        if (after != null) {
-            for (int i = 0; i < newText.length(); i += after.length(), after = after.getPrev()) {
-                if (after.getPrev() == null || i + after.length() >= lastChanged) {
-                    after = after.getNext();
-                    lastChanged = i;
-                    break;
-                }
-            }
-        }
-        return new ChangedCode(firstChanged, lastChanged, before, after);
+        int firstChanged = change.start;
+        // Количество неизменившихся символов в конце текста
+        int lastChanged = newText.length() - change.start - change.insertedLength;
+
+        if (tokenIndex.size() == 0) return null;
+        int oldLength = tokenIndex.length();
+
+        // Первый токен, затронутый изменением, разбирается заново вместе с изменением
+        int firstChangedIndex = tokenIndex.firstEndingAtOrAfter(firstChanged);
+        int beforeIndex = firstChangedIndex - 1;
+        firstChanged = tokenIndex.start(firstChangedIndex);
+        Token before = beforeIndex >= 0 ? tokenIndex.get(beforeIndex) : null;
+
+        // Последний токен, затронутый изменением, тоже разбирается заново
+        int lastChangedIndex = Math.max(tokenIndex.lastStartingAtOrBefore(oldLength - lastChanged), firstChangedIndex);
+        int afterIndex = lastChangedIndex + 1;
+        lastChanged = oldLength - tokenIndex.end(lastChangedIndex);
+        Token after = afterIndex < tokenIndex.size() ? tokenIndex.get(afterIndex) : null;
+
+        return new ChangedCode(firstChanged, lastChanged, before, after, beforeIndex, afterIndex);
     }
 
     protected Lexer getLexerForChangedText(String newText, ChangedCode change) {
@@ -211,25 +186,27 @@ public class LexerHighlighting implements Highlighter {
         return new Lexer(newText, change.before, change.after, change.firstChanged, newText.length() - change.firstChanged - change.lastChanged);
     }
 
-    private void addSpan(StyleSpansBuilder<Collection<String>> spansBuilder, Token token, String style, int start) {
-        if (token.isPartial()) {
-            spansBuilder.add(Arrays.asList("error", style), token.length());
-        } else {
-            spansBuilder.add(Collections.singleton(style), token.length());
-        }
-    }
-
     private static class ChangedCode {
         final int firstChanged;
         final int lastChanged;
         final Token before;
         final Token after;
-
-        private ChangedCode(int firstChanged, int lastChanged, Token before, Token after) {
+        /**
+         * Номер токена {@link #before} в индексе, или {@code -1}
+         */
+        final int beforeIndex;
+        /**
+         * Номер токена {@link #after} в индексе, или количество токенов в индексе
+         */
+        final int afterIndex;
+
+        private ChangedCode(int firstChanged, int lastChanged, Token before, Token after, int beforeIndex, int afterIndex) {
             this.firstChanged = firstChanged;
             this.lastChanged = lastChanged;
             this.before = before;
             this.after = after;
+            this.beforeIndex = beforeIndex;
+            this.afterIndex = afterIndex;
         }
     }
 }
@@ -14,7 +14,7 @@ public class NoHighlighting implements Highlighter {
     private volatile boolean noRuns;
 
     @Override
-    public HighlightingResult computeHighlighting(String text) {
+    public HighlightingResult computeHighlighting(String text, TextChange change) {
         int length = 0;
         if (noRuns) {
             length = text.length();
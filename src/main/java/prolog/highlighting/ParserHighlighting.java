@@ -3,13 +3,12 @@ package prolog.highlighting;
 import javafx.scene.control.ContextMenu;
 import org.fxmisc.richtext.model.StyleSpans;
 import org.fxmisc.richtext.model.StyleSpansBuilder;
+import prolog.latency.Phase;
 import ru.prolog.syntaxmodel.recognizers.Lexer;
 import ru.prolog.syntaxmodel.tree.AbstractNode;
-import ru.prolog.syntaxmodel.tree.Node;
 import ru.prolog.syntaxmodel.tree.Token;
 import ru.prolog.syntaxmodel.tree.interfaces.Bracketed;
 import ru.prolog.syntaxmodel.tree.interfaces.Separated;
-import ru.prolog.syntaxmodel.tree.misc.NodeError;
 import ru.prolog.syntaxmodel.tree.nodes.modules.ProgramNode;
 
 import java.util.*;
@@ -18,130 +17,62 @@ import java.util.*;
  * Подсветка синтаксиса с использованием лексера и парсера
  */
 public class ParserHighlighting implements Highlighter {
+    private final DocumentModel model;
     private ProgramNode treeRoot;
-    private final Map<Token, String> tokenNodeErrors = new HashMap<>();
-    private final Map<Token, Collection<String>> cachedTokenStyles = new HashMap<>();
+    private Map<Token, String> tokenNodeErrors = Collections.emptyMap();
     private final Set<Token> lastHighlightedTokens = new HashSet<>();
 
+    public ParserHighlighting() {
+        this(new DocumentModel());
+    }
+
+    /**
+     * @param model Модель документа, общая для всех видов подсветки
+     */
+    public ParserHighlighting(DocumentModel model) {
+        this.model = model;
+    }
+
     @Override
-    public HighlightingResult computeHighlighting(String text) {
+    public HighlightingResult computeHighlighting(String text, TextChange change) {
+        if (treeRoot != null && change != null) {
+            Token edited = model.editTree(change, text, token -> true);
+            if (edited != null) {
+                return new HighlightingResult(edited.startPos(), StyleSpans.singleton(tokenStyles(edited), edited.length()));
+            }
+        }
         return new HighlightingResult(0, computeHighlightingFull(text));
     }
 
     @Override
     public StyleSpans<Collection<String>> computeHighlightingFull(String text) {
-        cachedTokenStyles.clear();
         lastHighlightedTokens.clear();
-        tokenNodeErrors.clear();
-        Lexer lexer = new Lexer(text);
-        treeRoot = new ProgramNode(null);
-        treeRoot.parse(lexer);
+        treeRoot = model.tree(text);
+        tokenNodeErrors = model.nodeErrors();
         if(text.isEmpty()) return null;
-        collectNodeErrors(treeRoot);
-        return buildStyleSpans(lexer);
+        return buildStyleSpans(model.treeLexer());
     }
 
     private StyleSpans<Collection<String>> buildStyleSpans(Lexer lexer) {
+        long start = System.nanoTime();
         StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
         lexer.setPointer(null);
         while (!lexer.isEnd()) {
             Token token = lexer.nextToken();
             if (token == null) break;
-            List<String> styleClasses = new ArrayList<>();
-            if (token.getTokenType() == null) {
-                styleClasses.add("unknown");
-            } else {
-                if (tokenNodeErrors.containsKey(token)) styleClasses.add("nodeError");
-                if (token.isPartial()) styleClasses.add("error");
-                switch (token.getTokenType()) {
-                    case LB:
-                    case RB:
-                        styleClasses.add("bracket");
-                        break;
-                    case RSQB:
-                    case LSQB:
-                    case TAILSEP:
-                        styleClasses.add("sbracket");
-                        break;
-                    case DOT:
-                    case COMMA:
-                    case SEMICOLON:
-                    case IF_SIGN:
-                    case IF_KEYWORD:
-                    case AND_KEYWORD:
-                    case OR_KEYWORD:
-                        styleClasses.add("rule_sep");
-                        break;
-                    case SINGLE_COMMENT:
-                    case MULTILINE_COMMENT:
-                        styleClasses.add("comment");
-                        break;
-                    case INTEGER:
-                    case REAL:
-                        styleClasses.add("number");
-                        break;
-                    case STRING:
-                    case CHAR:
-                        styleClasses.add("string");
-                        break;
-                    case VARIABLE:
-                        styleClasses.add("variable");
-                        break;
-                    case SYMBOL:
-                    case CUT_SIGN:
-                        styleClasses.add("name");
-                        break;
-                    case ANONYMOUS:
-                        styleClasses.add("anonymous");
-                        break;
-                    case INCLUDE_KEYWORD:
-                    case DOMAINS_KEYWORD:
-                    case DATABASE_KEYWORD:
-                    case PREDICATES_KEYWORD:
-                    case CLAUSES_KEYWORD:
-                    case GOAL_KEYWORD:
-                        styleClasses.add("header");
-                        break;
-                    case STAR_MULTIPLY:
-                    case PLUS:
-                    case MINUS:
-                    case DIVIDE:
-                    case GREATER:
-                    case LESSER:
-                    case EQUALS:
-                        styleClasses.add("math");
-                        break;
-                }
-            }
-            spansBuilder.add(styleClasses, token.length());
-            cachedTokenStyles.put(token, styleClasses);
-        }
-        return spansBuilder.create();
-    }
-
-    private void collectNodeErrors(AbstractNode node) {
-        for (Map.Entry<Node, NodeError> nodeError : node.getErrors().entrySet()) {
-            String text = nodeError.getValue().getText();
-            Node key = nodeError.getKey();
-            if (nodeError.getValue().isAfter()) {
-                Token token = key.lastToken();
-                addTokenError(token, text);
-            } else {
-                key.tokens().forEach(token -> addTokenError(token, text));
-            }
+            spansBuilder.add(tokenStyles(token), token.length());
         }
-        node.children().stream()
-                .filter(n -> n instanceof AbstractNode)
-                .map(n -> (AbstractNode) n)
-                .forEach(this::collectNodeErrors);
+        StyleSpans<Collection<String>> styleSpans = spansBuilder.create();
+        Phase.SPAN_BUILDING.record(start);
+        return styleSpans;
     }
 
-    private void addTokenError(Token token, String error) {
-        if (tokenNodeErrors.containsKey(token)) {
-            tokenNodeErrors.put(token, tokenNodeErrors.get(token) + '\n' + error);
-        } else {
-            tokenNodeErrors.put(token, error);
-        }
+    private Collection<String> tokenStyles(Token token) {
+        if (token.getTokenType() == null) return TokenStyles.get(TokenStyles.UNKNOWN, 0);
+        int flags = 0;
+        if (tokenNodeErrors.containsKey(token)) flags |= TokenStyles.NODE_ERROR;
+        if (token.isPartial()) flags |= TokenStyles.ERROR;
+        return TokenStyles.get(TokenStyles.baseOf(token.getTokenType()), flags);
     }
 
     @Override
@@ -234,7 +165,7 @@ public class ParserHighlighting implements Highlighter {
     private Map<Token, Collection<String>> restoreLast() {
         Map<Token, Collection<String>> styles = new HashMap<>();
         for (Token token : lastHighlightedTokens) {
-            styles.put(token, cachedTokenStyles.get(token));
+            styles.put(token, tokenStyles(token));
         }
         return styles;
     }
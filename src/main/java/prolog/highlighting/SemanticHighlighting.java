@@ -1,17 +1,14 @@
 package prolog.highlighting;
 
+import javafx.application.Platform;
 import javafx.beans.binding.Bindings;
 import javafx.beans.binding.BooleanBinding;
-import javafx.scene.Scene;
 import javafx.scene.control.*;
-import javafx.scene.layout.Priority;
-import javafx.scene.layout.VBox;
-import javafx.stage.Modality;
-import javafx.stage.Stage;
 import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.MultiChangeBuilder;
 import org.fxmisc.richtext.model.StyleSpans;
 import org.fxmisc.richtext.model.StyleSpansBuilder;
-import org.fxmisc.richtext.model.StyledDocument;
+import prolog.latency.Phase;
 import ru.prolog.syntaxmodel.TokenType;
 import ru.prolog.syntaxmodel.recognizers.Lexer;
 import ru.prolog.syntaxmodel.tree.AbstractNode;
@@ -20,10 +17,8 @@ import ru.prolog.syntaxmodel.tree.Token;
 import ru.prolog.syntaxmodel.tree.interfaces.Bracketed;
 import ru.prolog.syntaxmodel.tree.interfaces.Named;
 import ru.prolog.syntaxmodel.tree.interfaces.Separated;
-import ru.prolog.syntaxmodel.tree.misc.NodeError;
 import ru.prolog.syntaxmodel.tree.nodes.FunctorDefNode;
 import ru.prolog.syntaxmodel.tree.nodes.modules.ProgramNode;
-import ru.prolog.syntaxmodel.tree.semantics.SemanticAnalyzer;
 import ru.prolog.syntaxmodel.tree.semantics.SemanticInfo;
 import ru.prolog.syntaxmodel.tree.semantics.attributes.*;
 import ru.prolog.syntaxmodel.tree.semantics.attributes.errors.AbstractSemanticError;
@@ -33,177 +28,144 @@ import ru.prolog.syntaxmodel.tree.semantics.attributes.warnings.AbstractSemantic
 import ru.prolog.util.NameChecker;
 
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 public class SemanticHighlighting implements Highlighter {
+    private final DocumentModel model;
     private ProgramNode treeRoot;
-    private final Map<Token, String> tokenNodeErrors = new HashMap<>();
-    private final Map<Token, Collection<String>> cachedTokenStyles = new HashMap<>();
+    private Map<Token, String> tokenNodeErrors = Collections.emptyMap();
     private final Set<Token> lastHighlightedTokens = new HashSet<>();
-    private SemanticAnalyzer semanticAnalyzer;
 
     private final CodeArea codeArea;
-    private Stage goToWindow;
+    /**
+     * Окно результатов поиска. Открывается в потоке JavaFX, сбрасывается также из потока подсветки.
+     */
+    private volatile FindResultsWindow goToWindow;
+    private Executor treeExecutor = Runnable::run;
 
     public SemanticHighlighting(CodeArea codeArea) {
+        this(codeArea, new DocumentModel());
+    }
+
+    /**
+     * @param codeArea Редактор, в котором выполняются действия контекстного меню
+     * @param model    Модель документа, общая для всех видов подсветки
+     */
+    public SemanticHighlighting(CodeArea codeArea, DocumentModel model) {
         this.codeArea = codeArea;
+        this.model = model;
+    }
+
+    /**
+     * @param treeExecutor Выполняет изменения дерева разбора в потоке, который вычисляет подсветку,
+     *                     чтобы дерево не изменялось во время вычисления
+     */
+    public void setTreeExecutor(Executor treeExecutor) {
+        this.treeExecutor = treeExecutor;
     }
 
     @Override
     public StyleSpans<Collection<String>> computeHighlightingFull(String text) {
-        if(goToWindow != null) {
-            goToWindow.close();
+        // Вызывается в потоке подсветки, а окно можно закрыть только в потоке JavaFX
+        FindResultsWindow window = goToWindow;
+        if(window != null) {
             goToWindow = null;
+            Platform.runLater(window::close);
         }
-        cachedTokenStyles.clear();
         lastHighlightedTokens.clear();
-        tokenNodeErrors.clear();
-        Lexer lexer = new Lexer(text);
-        treeRoot = new ProgramNode(null);
-        treeRoot.parse(lexer);
-        collectNodeErrors(treeRoot);
-        semanticAnalyzer = new SemanticAnalyzer(treeRoot);
-        semanticAnalyzer.performSemanticAnalysis();
+        treeRoot = model.analyzedTree(text);
+        tokenNodeErrors = model.nodeErrors();
         if(text.isEmpty()) return null;
-        return buildStyleSpans(lexer);
+        return buildStyleSpans(model.treeLexer());
     }
 
     @Override
-    public HighlightingResult computeHighlighting(String text) {
+    public HighlightingResult computeHighlighting(String text, TextChange change) {
+        if (treeRoot != null && change != null && model.acceptEditedTree(text) && treeRoot == model.analyzedTree(text)) {
+            // Дерево уже изменено переименованием, достаточно обновить разметку изменившегося участка
+            return rangeResult(change.start, change.start + change.insertedLength);
+        }
+        if (treeRoot != null && change != null) {
+            Token edited = model.editTree(change, text, DocumentModel::keepsSemantics);
+            if (edited != null) {
+                return new HighlightingResult(edited.startPos(), StyleSpans.singleton(tokenStyles(edited), edited.length()));
+            }
+        }
         return new HighlightingResult(0, computeHighlightingFull(text));
     }
 
+    /**
+     * @return Разметка токенов, пересекающихся с участком текста
+     */
+    private HighlightingResult rangeResult(int from, int to) {
+        if (from >= treeRoot.length()) return new HighlightingResult(0, buildStyleSpans(model.treeLexer()));
+        Token first = treeRoot.tokenByRelativePos(from);
+        int start = first.startPos();
+        StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
+        int pos = start;
+        for (Token token = first; token != null && (pos < to || token == first); token = token.getNext()) {
+            spansBuilder.add(tokenStyles(token), token.length());
+            pos += token.length();
+        }
+        return new HighlightingResult(start, spansBuilder.create());
+    }
+
     private StyleSpans<Collection<String>> buildStyleSpans(Lexer lexer) {
+        long start = System.nanoTime();
         StyleSpansBuilder<Collection<String>> spansBuilder = new StyleSpansBuilder<>();
         lexer.setPointer(null);
         while (!lexer.isEnd()) {
             Token token = lexer.nextToken();
             if (token == null) break;
-            List<String> styleClasses = new ArrayList<>();
-            if (token.getTokenType() == null) {
-                styleClasses.add("unknown");
-            } else {
-                if (tokenNodeErrors.containsKey(token)) styleClasses.add("nodeError");
-                if (token.isPartial()) styleClasses.add("error");
-                switch (token.getTokenType()) {
-                    case LB:
-                    case RB:
-                        styleClasses.add("bracket");
-                        break;
-                    case RSQB:
-                    case LSQB:
-                    case TAILSEP:
-                        styleClasses.add("sbracket");
-                        break;
-                    case DOT:
-                    case COMMA:
-                    case SEMICOLON:
-                    case IF_SIGN:
-                    case IF_KEYWORD:
-                    case AND_KEYWORD:
-                    case OR_KEYWORD:
-                        styleClasses.add("rule_sep");
-                        break;
-                    case SINGLE_COMMENT:
-                    case MULTILINE_COMMENT:
-                        styleClasses.add("comment");
-                        break;
-                    case INTEGER:
-                    case REAL:
-                        styleClasses.add("number");
-                        break;
-                    case STRING:
-                    case CHAR:
-                        styleClasses.add("string");
-                        break;
-                    case VARIABLE:
-                        styleClasses.add("variable");
-                        break;
-                    case SYMBOL:
-                    case CUT_SIGN:
-                        styleClasses.add("name");
-                        break;
-                    case ANONYMOUS:
-                        styleClasses.add("anonymous");
-                        break;
-                    case INCLUDE_KEYWORD:
-                    case DOMAINS_KEYWORD:
-                    case DATABASE_KEYWORD:
-                    case PREDICATES_KEYWORD:
-                    case CLAUSES_KEYWORD:
-                    case GOAL_KEYWORD:
-                        styleClasses.add("header");
-                        break;
-                    case STAR_MULTIPLY:
-                    case PLUS:
-                    case MINUS:
-                    case DIVIDE:
-                    case GREATER:
-                    case LESSER:
-                    case EQUALS:
-                        styleClasses.add("math");
-                        break;
-                }
-                checkSemantic(token, styleClasses);
-            }
-            spansBuilder.add(styleClasses, token.length());
-            cachedTokenStyles.put(token, styleClasses);
+            spansBuilder.add(tokenStyles(token), token.length());
         }
-        return spansBuilder.create();
+        StyleSpans<Collection<String>> styleSpans = spansBuilder.create();
+        Phase.SPAN_BUILDING.record(start);
+        return styleSpans;
     }
 
-    private void checkSemantic(Token token, List<String> styleClasses) {
+    private Collection<String> tokenStyles(Token token) {
+        if (token.getTokenType() == null) return TokenStyles.get(TokenStyles.UNKNOWN, 0);
+        int flags = 0;
+        if (tokenNodeErrors.containsKey(token)) flags |= TokenStyles.NODE_ERROR;
+        if (token.isPartial()) flags |= TokenStyles.ERROR;
+        flags |= checkSemantic(token);
+        return TokenStyles.get(TokenStyles.baseOf(token.getTokenType()), flags);
+    }
+
+    /**
+     * @return Флаги стилей {@link TokenStyles} по результатам семантического анализа узлов, в которые входит токен
+     */
+    private int checkSemantic(Token token) {
+        int flags = 0;
         for (Node node = token; token.parent() != null; node = node.parent()) {
             if(node == null) break;
             SemanticInfo semanticInfo = node.getSemanticInfo();
             List<AbstractSemanticError> errors = semanticInfo.getErrors();
             List<AbstractSemanticWarning> warnings = semanticInfo.getWarnings();
             if(!errors.isEmpty()) {
-                checkNamedAndSetStyle(token, node, styleClasses, "semanticError");
+                if(isNameOrUnnamed(token, node)) flags |= TokenStyles.SEMANTIC_ERROR;
             } else if(!warnings.isEmpty()) {
-                checkNamedAndSetStyle(token, node, styleClasses, "warning");
+                if(isNameOrUnnamed(token, node)) flags |= TokenStyles.WARNING;
             } else {
                 ToUsages usages = semanticInfo.getAttribute(ToUsages.class);
                 if(node instanceof Named && ((Named) node).getName() == token && usages!=null && usages.getUsages().isEmpty()) {
-                    styleClasses.add("unused");
+                    flags |= TokenStyles.UNUSED;
                 }
                 if(semanticInfo.getAttribute(SymbolValue.class) != null) {
-                    styleClasses.add("string");
+                    flags |= TokenStyles.STRING;
                 }
             }
         }
+        return flags;
     }
 
-    private void checkNamedAndSetStyle(Token token, Node node, List<String> styleClasses, String style) {
-        if(node instanceof Named && ((Named) node).getName() != token) {
-            return;
-        }
-        styleClasses.add(style);
-    }
-
-    private void collectNodeErrors(AbstractNode node) {
-        for (Map.Entry<Node, NodeError> nodeError : node.getErrors().entrySet()) {
-            String text = nodeError.getValue().getText();
-            Node key = nodeError.getKey();
-            if (nodeError.getValue().isAfter()) {
-                Token token = key.lastToken();
-                addTokenError(token, text);
-            } else {
-                key.tokens().forEach(token -> addTokenError(token, text));
-            }
-        }
-        node.children().stream()
-                .filter(n -> n instanceof AbstractNode)
-                .map(n -> (AbstractNode) n)
-                .forEach(this::collectNodeErrors);
-    }
-
-    private void addTokenError(Token token, String error) {
-        if (tokenNodeErrors.containsKey(token)) {
-            tokenNodeErrors.put(token, tokenNodeErrors.get(token) + '\n' + error);
-        } else {
-            tokenNodeErrors.put(token, error);
-        }
+    /**
+     * @return {@code true} если узел не именованный или токен является его именем
+     */
+    private boolean isNameOrUnnamed(Token token, Node node) {
+        return !(node instanceof Named) || ((Named) node).getName() == token;
     }
 
     @Override
@@ -369,8 +331,8 @@ public class SemanticHighlighting implements Highlighter {
 
                     Optional<String> result = dialog.showAndWait();
                     if (!result.isPresent()) return;
-                    usages.forEach(t -> t.setText(result.get()));
-                    codeArea.replaceText(treeRoot.getText());
+                    // Новое имя может совпасть с существующим, поэтому семантический анализ выполняется заново
+                    rename(usages, result.get(), false);
                 });
                 menuItems.add(rename);
             }
@@ -392,14 +354,46 @@ public class SemanticHighlighting implements Highlighter {
 
                     Optional<String> result = dialog.showAndWait();
                     if (!result.isPresent()) return;
-                    variableUsages.forEach(t -> t.setText(result.get()));
-                    codeArea.replaceText(treeRoot.getText());
+                    // Диалог не допускает имён других переменных, поэтому связи переменных не меняются
+                    rename(variableUsages, result.get(), true);
                 });
                 menuItems.add(rename);
             }
         }
     }
 
+    /**
+     * Переименовывает токены одним составным изменением текста, которое отменяется за один шаг.
+     * Заменяется только текст самих токенов, дерево разбора изменяется на месте.
+     *
+     * @param usages        Переименовываемые токены
+     * @param newName       Новое имя
+     * @param keepsAnalysis Переименование не меняет результатов семантического анализа
+     */
+    private void rename(List<Token> usages, String newName, boolean keepsAnalysis) {
+        // Объявление может быть одновременно использованием, а у части узлов нет токена имени.
+        // Повторяющийся токен дал бы пересекающиеся замены.
+        Set<Token> unique = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Token> tokens = new ArrayList<>();
+        for (Token token : usages) {
+            if (token != null && unique.add(token)) tokens.add(token);
+        }
+        if (tokens.isEmpty()) return;
+        // Изменения применяются по очереди, поэтому замены с конца текста не сдвигают позиции следующих
+        tokens.sort(Comparator.comparingInt(Token::startPos).reversed());
+        MultiChangeBuilder<Collection<String>, String, Collection<String>> multiChange = codeArea.createMultiChange(tokens.size());
+        for (Token token : tokens) {
+            int start = token.startPos();
+            multiChange.replaceText(start, start + token.length(), newName);
+        }
+        // Дерево изменяется в потоке подсветки раньше, чем будет вычислена подсветка нового текста
+        treeExecutor.execute(() -> {
+            tokens.forEach(token -> token.setText(newName));
+            model.treeEdited(keepsAnalysis);
+        });
+        multiChange.commit();
+    }
+
     private boolean checkVariableExists (String name, VariablesHolder holder) {
         if(!holder.byName(name).isEmpty()) return true;
         if(holder instanceof StatementSetVariablesHolder) {
@@ -430,12 +424,22 @@ public class SemanticHighlighting implements Highlighter {
                 codeArea.requestFollowCaret();
             });
         } else {
-            menuItem.setOnAction(event -> showFindResultsWindow(foundNodes, windowTitle));
+            // Дерево, которому принадлежат узлы, запоминается при построении меню
+            ProgramNode root = treeRoot;
+            menuItem.setOnAction(event -> showFindResultsWindow(root, foundNodes, windowTitle));
         }
         menuItems.add(menuItem);
     }
 
-    private void showFindResultsWindow(Collection<Node> results, String title) {
+    /**
+     * Открывает окно результатов поиска. Результаты строятся в потоке подсветки,
+     * если дерево разбора с момента построения меню не изменилось, иначе окно закрывается.
+     *
+     * @param root    Дерево, которому принадлежат найденные узлы
+     * @param results Найденные узлы
+     * @param title   Заголовок окна
+     */
+    private void showFindResultsWindow(ProgramNode root, Collection<Node> results, String title) {
         Map<Token, Collection<String>> restoreStyles = restoreLast();
         for (Map.Entry<Token, Collection<String>> style : restoreStyles.entrySet()) {
             Token token = style.getKey();
@@ -445,43 +449,19 @@ public class SemanticHighlighting implements Highlighter {
         if(goToWindow != null) {
             goToWindow.close();
         }
-        goToWindow = new Stage();
-        goToWindow.setTitle(title);
-        goToWindow.initModality(Modality.NONE);
-
-        VBox layout = new VBox();
-        ScrollPane scrollPane = new ScrollPane(layout);
-        scrollPane.setFitToWidth(true);
-        Scene scene = new Scene(scrollPane, 300, 200);
-        goToWindow.setScene(scene);
-
-        results = results.stream().sorted(Comparator.comparingInt(Node::startPos)).collect(Collectors.toList());
-        for (Node result : results) {
-            int lineNumber = result.line();
-            StyledDocument<Collection<String>, String, Collection<String>> styledLine = codeArea.subDocument(lineNumber);
-            CodeArea line = new CodeArea();
-            line.setEditable(false);
-            VBox.setVgrow(line, Priority.NEVER);
-            line.setParagraphGraphicFactory(n->new Label(lineNumber+1 + ":"));
-            line.setMaxHeight(30);
-            line.getStylesheets().addAll(codeArea.getStylesheets());
-            line.append(styledLine);
-            layout.getChildren().add(line);
-            line.setOnMouseEntered(event -> line.setStyle("-fx-border-width: 1px; -fx-border-color: black; -fx-cursor: hand;"));
-            line.setOnMouseExited(event -> line.setStyle("-fx-border-width: 0px; -fx-cursor: default;"));
-            int lineStartPos = codeArea.position(lineNumber, 0).toOffset();
-            int nodeSatrt = result.startPos();
-            int posInLine = nodeSatrt - lineStartPos;
-            line.setStyle(posInLine, posInLine + result.firstToken().length(), Arrays.asList("onCursor", "usage"));
-
-            line.setOnMouseClicked(event -> {
-                int startPos = result.startPos();
-                codeArea.selectRange(startPos, startPos + result.firstToken().length());
-                codeArea.requestFollowCaret();
-            });
-        }
-
-        goToWindow.show();
+        FindResultsWindow window = new FindResultsWindow(codeArea, title);
+        goToWindow = window;
+        window.show();
+        // Узлы дерева читаются в потоке подсветки, где дерево не изменяется во время чтения
+        treeExecutor.execute(() -> {
+            String text = model.treeText();
+            if (text == null || model.currentTree() != root) {
+                // Дерево изменено после открытия меню, позиции найденных узлов устарели
+                Platform.runLater(window::close);
+                return;
+            }
+            window.collect(text, results);
+        });
     }
 
     private void checkCursorStyleRules(Map<Token, Collection<String>> styles, Token token) {
@@ -602,7 +582,7 @@ public class SemanticHighlighting implements Highlighter {
     private Map<Token, Collection<String>> restoreLast() {
         Map<Token, Collection<String>> styles = new HashMap<>();
         for (Token token : lastHighlightedTokens) {
-            styles.put(token, cachedTokenStyles.get(token));
+            styles.put(token, tokenStyles(token));
         }
         return styles;
     }
@@ -0,0 +1,18 @@
+package prolog.highlighting;
+
+import org.fxmisc.richtext.model.StyleSpans;
+
+import java.util.Collection;
+
+/**
+ * Слой стилей, накладываемый поверх подсветки синтаксиса, например, выделение найденных совпадений.
+ * Слой применяется к каждой разметке перед её передачей в редактор, поэтому пересчёт подсветки его не стирает.
+ */
+public interface StyleLayer {
+    /**
+     * @param start      Индекс начала участка текста
+     * @param styleSpans Разметка участка
+     * @return Разметка участка с добавленными стилями слоя
+     */
+    StyleSpans<Collection<String>> overlay(int start, StyleSpans<Collection<String>> styleSpans);
+}
@@ -0,0 +1,108 @@
+package prolog.highlighting;
+
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.StyleSpan;
+import org.fxmisc.richtext.model.StyleSpans;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Применение к редактору только изменившейся разметки.
+ * <p>
+ * Новая разметка сравнивается с разметкой, уже применённой к тому же участку текста, и в редактор передаются
+ * только участки с отличающимися стилями. Редактор перестраивает только абзацы, которые попадают в эти участки.
+ */
+public final class StyleSpansDiff {
+    /**
+     * Участки, разделённые меньшим количеством символов с совпадающими стилями, применяются одним вызовом
+     */
+    private static final int MERGE_GAP = 64;
+
+    private StyleSpansDiff() {
+    }
+
+    /**
+     * Применяет к редактору участки разметки, отличающиеся от текущей разметки редактора.
+     * Вызывается из потока JavaFX.
+     *
+     * @param codeArea   Редактор
+     * @param start      Индекс начала участка текста
+     * @param styleSpans Новая разметка участка
+     */
+    public static void apply(CodeArea codeArea, int start, StyleSpans<Collection<String>> styleSpans) {
+        if (styleSpans.length() == 0) return;
+        StyleSpans<Collection<String>> current = codeArea.getStyleSpans(start, start + styleSpans.length());
+        for (int[] range : changedRanges(current, styleSpans)) {
+            codeArea.setStyleSpans(start + range[0], styleSpans.subView(range[0], range[1]));
+        }
+    }
+
+    /**
+     * Находит участки, на которых стили двух разметок одного текста отличаются.
+     *
+     * @param oldSpans Прежняя разметка
+     * @param newSpans Новая разметка
+     * @return Индексы начала и конца отличающихся участков относительно начала разметки, в порядке возрастания
+     */
+    static List<int[]> changedRanges(StyleSpans<Collection<String>> oldSpans, StyleSpans<Collection<String>> newSpans) {
+        List<int[]> ranges = new ArrayList<>();
+        Iterator<StyleSpan<Collection<String>>> oldIterator = oldSpans.iterator();
+        Iterator<StyleSpan<Collection<String>>> newIterator = newSpans.iterator();
+        StyleSpan<Collection<String>> oldSpan = null;
+        StyleSpan<Collection<String>> newSpan = null;
+        int oldRemaining = 0;
+        int newRemaining = 0;
+        int pos = 0;
+        int[] range = null;
+        while (true) {
+            if (newRemaining == 0) {
+                if (!newIterator.hasNext()) break;
+                newSpan = newIterator.next();
+                newRemaining = newSpan.getLength();
+                continue;
+            }
+            if (oldRemaining == 0) {
+                if (!oldIterator.hasNext()) {
+                    // Прежняя разметка короче новой, оставшаяся часть считается изменившейся
+                    range = extend(ranges, range, pos, newSpans.length());
+                    break;
+                }
+                oldSpan = oldIterator.next();
+                oldRemaining = oldSpan.getLength();
+                continue;
+            }
+            int step = Math.min(oldRemaining, newRemaining);
+            if (!sameStyle(oldSpan.getStyle(), newSpan.getStyle())) {
+                range = extend(ranges, range, pos, pos + step);
+            }
+            pos += step;
+            oldRemaining -= step;
+            newRemaining -= step;
+        }
+        return ranges;
+    }
+
+    /**
+     * Добавляет отличающийся участок к последнему найденному, если они расположены близко, иначе начинает новый.
+     *
+     * @return Последний участок
+     */
+    private static int[] extend(List<int[]> ranges, int[] range, int from, int to) {
+        if (range != null && from - range[1] < MERGE_GAP) {
+            range[1] = to;
+            return range;
+        }
+        range = new int[]{from, to};
+        ranges.add(range);
+        return range;
+    }
+
+    private static boolean sameStyle(Collection<String> oldStyle, Collection<String> newStyle) {
+        // Наборы классов берутся из общего пула, поэтому обычно достаточно сравнения ссылок
+        return oldStyle == newStyle || Objects.equals(oldStyle, newStyle);
+    }
+}
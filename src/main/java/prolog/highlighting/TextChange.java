@@ -0,0 +1,82 @@
+package prolog.highlighting;
+
+import org.fxmisc.richtext.model.PlainTextChange;
+
+import java.util.List;
+
+/**
+ * Изменение текста: замена участка старого текста на участок нового текста, начинающийся с той же позиции.
+ * Несколько последовательных изменений объединяются в одно, покрывающее их все.
+ */
+public final class TextChange {
+    /**
+     * Позиция начала изменения
+     */
+    public final int start;
+
+    /**
+     * Длина удалённого участка старого текста
+     */
+    public final int removedLength;
+
+    /**
+     * Длина вставленного участка нового текста
+     */
+    public final int insertedLength;
+
+    public TextChange(int start, int removedLength, int insertedLength) {
+        this.start = start;
+        this.removedLength = removedLength;
+        this.insertedLength = insertedLength;
+    }
+
+    /**
+     * Объединяет последовательные изменения, полученные от редактора.
+     *
+     * @param previous Ранее накопленное изменение, или {@code null}
+     * @param changes  Изменения в порядке их применения
+     * @return Изменение, покрывающее все изменения
+     */
+    public static TextChange merge(TextChange previous, List<PlainTextChange> changes) {
+        TextChange merged = previous;
+        for (PlainTextChange change : changes) {
+            TextChange next = new TextChange(change.getPosition(),
+                    change.getRemovalEnd() - change.getPosition(),
+                    change.getInsertionEnd() - change.getPosition());
+            merged = merge(merged, next);
+        }
+        return merged;
+    }
+
+    /**
+     * Объединяет два последовательных изменения
+     *
+     * @param first  Первое изменение, или {@code null}
+     * @param second Изменение, применённое к тексту после первого, или {@code null}
+     * @return Изменение, покрывающее оба изменения
+     */
+    public static TextChange merge(TextChange first, TextChange second) {
+        if (first == null) return second;
+        if (second == null) return first;
+        int start = Math.min(first.start, second.start);
+        // Конец объединённого участка в тексте после первого изменения
+        int end = Math.max(first.start + first.insertedLength, second.start + second.removedLength);
+        int oldEnd = end - first.insertedLength + first.removedLength;
+        int newEnd = end - second.removedLength + second.insertedLength;
+        return new TextChange(start, oldEnd - start, newEnd - start);
+    }
+
+    /**
+     * @return Изменение длины текста
+     */
+    public int lengthDelta() {
+        return insertedLength - removedLength;
+    }
+
+    /**
+     * @return {@code true} если изменение не меняет текст
+     */
+    public boolean isEmpty() {
+        return removedLength == 0 && insertedLength == 0;
+    }
+}
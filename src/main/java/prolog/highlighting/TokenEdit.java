@@ -0,0 +1,94 @@
+package prolog.highlighting;
+
+import ru.prolog.syntaxmodel.recognizers.Lexer;
+import ru.prolog.syntaxmodel.tree.Token;
+import ru.prolog.syntaxmodel.tree.nodes.modules.ProgramNode;
+
+import java.util.function.Predicate;
+
+/**
+ * Применение изменения текста к уже построенному дереву разбора без повторного парсинга.
+ * <p>
+ * Изменение применяется, только если оно целиком лежит внутри одного токена и после изменения этот токен
+ * остаётся одним токеном того же типа, не сливаясь с соседями. В этом случае структура дерева не меняется,
+ * и достаточно заменить текст токена.
+ */
+final class TokenEdit {
+    private TokenEdit() {
+    }
+
+    /**
+     * Применяет изменение текста к дереву, если оно не меняет структуру дерева и изменяемый токен удовлетворяет условию.
+     *
+     * @param root     Корень дерева, построенного для текста до изменения
+     * @param change   Изменение текста
+     * @param newText  Новый текст
+     * @param editable Условие, при котором токен можно изменить без повторного разбора
+     * @return Изменённый токен, или {@code null} если изменение нельзя применить без повторного парсинга.
+     */
+    static Token apply(ProgramNode root, TextChange change, String newText, Predicate<Token> editable) {
+        int oldLength = root.length();
+        if (oldLength == 0 || newText.isEmpty() || change.isEmpty()) return null;
+        if (oldLength + change.lengthDelta() != newText.length()) return null;
+
+        int firstChanged = change.start;
+        int oldChangeEnd = change.start + change.removedLength;
+        int lengthDelta = change.lengthDelta();
+
+        Token token = root.tokenByRelativePos(Math.min(firstChanged, oldLength - 1));
+        if (tryApply(token, firstChanged, oldChangeEnd, lengthDelta, newText, editable)) return token;
+        // Вставка на границе токенов может относиться к предыдущему токену
+        Token prev = token.getPrev();
+        if (prev != null && token.startPos() == firstChanged && tryApply(prev, firstChanged, oldChangeEnd, lengthDelta, newText, editable)) {
+            return prev;
+        }
+        return null;
+    }
+
+    private static boolean tryApply(Token token, int firstChanged, int oldChangeEnd, int lengthDelta, String newText,
+                                    Predicate<Token> editable) {
+        if (token.getTokenType() == null || token.isPartial() || token.getHint() != null) return false;
+        if (!editable.test(token)) return false;
+        int start = token.startPos();
+        int oldEnd = start + token.length();
+        if (firstChanged < start || oldChangeEnd > oldEnd) return false;
+        int newEnd = oldEnd + lengthDelta;
+        if (newEnd <= start) return false;
+        String newTokenText = newText.substring(start, newEnd);
+
+        Token relexed = singleToken(newTokenText);
+        if (relexed == null || relexed.getTokenType() != token.getTokenType()
+                || relexed.isPartial() || relexed.getHint() != null) {
+            return false;
+        }
+        // Изменённый токен не должен сливаться с соседними
+        Token prev = token.getPrev();
+        if (prev != null && !startsWithToken(prev.getText() + newTokenText, prev.length())) return false;
+        Token next = token.getNext();
+        if (next != null && !startsWithToken(newTokenText + next.getText(), newTokenText.length())) return false;
+
+        token.setText(newTokenText);
+        return true;
+    }
+
+    /**
+     * @return Единственный токен, из которого состоит текст, или {@code null} если текст состоит из нескольких токенов.
+     */
+    private static Token singleToken(String text) {
+        Lexer lexer = new Lexer(text);
+        if (lexer.isClosed()) return null;
+        Token token = lexer.nextToken();
+        if (token == null || token.length() != text.length()) return null;
+        return token;
+    }
+
+    /**
+     * @return {@code true} если первый токен текста имеет указанную длину
+     */
+    private static boolean startsWithToken(String text, int length) {
+        Lexer lexer = new Lexer(text);
+        if (lexer.isClosed()) return false;
+        Token token = lexer.nextToken();
+        return token != null && token.length() == length;
+    }
+}
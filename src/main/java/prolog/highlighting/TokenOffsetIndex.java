@@ -0,0 +1,139 @@
+package prolog.highlighting;
+
+import ru.prolog.syntaxmodel.tree.Token;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Индекс смещений токенов в тексте.
+ * <p>
+ * Хранит токены в порядке следования и массив смещений их начал, поэтому поиск токена по позиции в тексте
+ * выполняется двоичным поиском. При повторном разборе изменившегося участка заменяется только соответствующий
+ * диапазон токенов, смещения остальных токенов сдвигаются на изменение длины текста.
+ */
+class TokenOffsetIndex {
+    private Token[] tokens = new Token[16];
+
+    /**
+     * Смещения начал токенов. {@code starts[size]} равно длине всего текста.
+     */
+    private int[] starts = new int[17];
+
+    private int size;
+
+    /**
+     * @return Количество токенов в индексе
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return Суммарная длина всех токенов
+     */
+    int length() {
+        return starts[size];
+    }
+
+    Token get(int index) {
+        return tokens[index];
+    }
+
+    /**
+     * @return Смещение начала токена с указанным номером
+     */
+    int start(int index) {
+        return starts[index];
+    }
+
+    /**
+     * @return Смещение символа, следующего за токеном с указанным номером
+     */
+    int end(int index) {
+        return starts[index + 1];
+    }
+
+    /**
+     * Находит токен, содержащий символ в указанной позиции.
+     *
+     * @param pos Позиция символа в тексте
+     * @return Номер токена, или {@code -1} если позиция вне текста.
+     */
+    int indexAt(int pos) {
+        if (pos < 0 || pos >= length()) return -1;
+        return lastStartingAtOrBefore(pos);
+    }
+
+    /**
+     * Находит первый токен, который заканчивается не раньше указанной позиции.
+     *
+     * @param pos Позиция в тексте
+     * @return Номер токена, или {@code size() - 1} если все токены заканчиваются раньше.
+     */
+    int firstEndingAtOrAfter(int pos) {
+        int i = Arrays.binarySearch(starts, 1, size + 1, pos);
+        if (i < 0) i = -i - 1;
+        else while (i > 1 && starts[i - 1] == pos) i--;
+        return Math.min(i - 1, size - 1);
+    }
+
+    /**
+     * Находит последний токен, который начинается не позже указанной позиции.
+     *
+     * @param pos Позиция в тексте
+     * @return Номер токена, или {@code -1} если таких токенов нет.
+     */
+    int lastStartingAtOrBefore(int pos) {
+        int i = Arrays.binarySearch(starts, 0, size, pos);
+        if (i >= 0) {
+            while (i + 1 < size && starts[i + 1] == pos) i++;
+            return i;
+        }
+        return -i - 2;
+    }
+
+    /**
+     * Заменяет все токены индекса
+     */
+    void reset(List<Token> newTokens) {
+        Arrays.fill(tokens, 0, size, null);
+        size = 0;
+        starts[0] = 0;
+        replace(0, 0, newTokens);
+    }
+
+    /**
+     * Заменяет токены с номерами {@code [from, to)} новыми токенами.
+     * Смещения токенов после заменённого диапазона сдвигаются на разницу длин.
+     */
+    void replace(int from, int to, List<Token> newTokens) {
+        int removed = to - from;
+        int pos = starts[from];
+        int newSize = size - removed + newTokens.size();
+        if (newSize + 1 > starts.length) {
+            int capacity = Math.max(newSize + 1, starts.length * 2);
+            tokens = Arrays.copyOf(tokens, capacity);
+            starts = Arrays.copyOf(starts, capacity + 1);
+        }
+
+        int oldLength = starts[to] - starts[from];
+        int newLength = 0;
+        for (Token token : newTokens) newLength += token.length();
+        int delta = newLength - oldLength;
+
+        int tail = size - to;
+        System.arraycopy(tokens, to, tokens, from + newTokens.size(), tail);
+        System.arraycopy(starts, to, starts, from + newTokens.size(), tail + 1);
+        for (int i = from + newTokens.size(); i <= newSize; i++) starts[i] += delta;
+        for (int i = newSize; i < size; i++) tokens[i] = null;
+
+        for (int i = 0; i < newTokens.size(); i++) {
+            Token token = newTokens.get(i);
+            tokens[from + i] = token;
+            starts[from + i] = pos;
+            pos += token.length();
+        }
+        size = newSize;
+    }
+}
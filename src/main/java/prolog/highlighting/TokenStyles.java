@@ -0,0 +1,160 @@
+package prolog.highlighting;
+
+import ru.prolog.syntaxmodel.TokenType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Таблица CSS-классов для типов токенов и пул всех возможных сочетаний классов.
+ * <p>
+ * Сочетание классов задаётся основным классом типа токена и набором флагов. Все сочетания создаются заранее,
+ * поэтому при построении разметки одинаковые сочетания представлены одним и тем же неизменяемым объектом,
+ * и на каждый токен не создаётся новый список классов.
+ */
+final class TokenStyles {
+    /**
+     * Основной класс отсутствует
+     */
+    static final int NONE = 0;
+
+    /**
+     * Основной класс нераспознанного токена
+     */
+    static final int UNKNOWN = 1;
+
+    /**
+     * Ошибка разбора узла, в который входит токен
+     */
+    static final int NODE_ERROR = 1;
+    /**
+     * Токен распознан не полностью
+     */
+    static final int ERROR = 1 << 1;
+    static final int SEMANTIC_ERROR = 1 << 2;
+    static final int WARNING = 1 << 3;
+    static final int UNUSED = 1 << 4;
+    /**
+     * Имя, используемое как строковое значение
+     */
+    static final int STRING = 1 << 5;
+
+    private static final String[] FLAG_CLASSES = {"nodeError", "error", "semanticError", "warning", "unused", "string"};
+
+    private static final String[] BASE_CLASSES = {null, "unknown", "bracket", "sbracket", "rule_sep", "comment",
+            "number", "string", "variable", "name", "anonymous", "header", "math"};
+
+    /**
+     * Номер основного класса для каждого типа токена по его порядковому номеру
+     */
+    private static final int[] TYPE_BASES = new int[TokenType.values().length];
+
+    private static final Collection<String>[][] POOL;
+
+    static {
+        for (TokenType type : TokenType.values()) {
+            TYPE_BASES[type.ordinal()] = baseIndex(baseClass(type));
+        }
+
+        @SuppressWarnings("unchecked")
+        Collection<String>[][] pool = new Collection[BASE_CLASSES.length][1 << FLAG_CLASSES.length];
+        for (int base = 0; base < BASE_CLASSES.length; base++) {
+            for (int flags = 0; flags < 1 << FLAG_CLASSES.length; flags++) {
+                pool[base][flags] = combine(base, flags);
+            }
+        }
+        POOL = pool;
+    }
+
+    private TokenStyles() {
+    }
+
+    /**
+     * @return Номер основного класса для типа токена. Для {@code null} возвращает {@link #UNKNOWN}.
+     */
+    static int baseOf(TokenType type) {
+        return type == null ? UNKNOWN : TYPE_BASES[type.ordinal()];
+    }
+
+    /**
+     * @param base  Номер основного класса
+     * @param flags Флаги дополнительных классов
+     * @return Неизменяемый общий набор классов
+     */
+    static Collection<String> get(int base, int flags) {
+        return POOL[base][flags];
+    }
+
+    private static String baseClass(TokenType type) {
+        switch (type) {
+            case LB:
+            case RB:
+                return "bracket";
+            case RSQB:
+            case LSQB:
+            case TAILSEP:
+                return "sbracket";
+            case DOT:
+            case COMMA:
+            case SEMICOLON:
+            case IF_SIGN:
+            case IF_KEYWORD:
+            case AND_KEYWORD:
+            case OR_KEYWORD:
+                return "rule_sep";
+            case SINGLE_COMMENT:
+            case MULTILINE_COMMENT:
+                return "comment";
+            case INTEGER:
+            case REAL:
+                return "number";
+            case STRING:
+            case CHAR:
+                return "string";
+            case VARIABLE:
+                return "variable";
+            case SYMBOL:
+            case CUT_SIGN:
+                return "name";
+            case ANONYMOUS:
+                return "anonymous";
+            case INCLUDE_KEYWORD:
+            case DOMAINS_KEYWORD:
+            case DATABASE_KEYWORD:
+            case PREDICATES_KEYWORD:
+            case CLAUSES_KEYWORD:
+            case GOAL_KEYWORD:
+                return "header";
+            case STAR_MULTIPLY:
+            case PLUS:
+            case MINUS:
+            case DIVIDE:
+            case GREATER:
+            case LESSER:
+            case EQUALS:
+                return "math";
+            default:
+                return null;
+        }
+    }
+
+    private static int baseIndex(String styleClass) {
+        for (int i = 1; i < BASE_CLASSES.length; i++) {
+            if (BASE_CLASSES[i].equals(styleClass)) return i;
+        }
+        return NONE;
+    }
+
+    private static Collection<String> combine(int base, int flags) {
+        List<String> styleClasses = new ArrayList<>();
+        if ((flags & NODE_ERROR) != 0) styleClasses.add(FLAG_CLASSES[0]);
+        if ((flags & ERROR) != 0) styleClasses.add(FLAG_CLASSES[1]);
+        if (BASE_CLASSES[base] != null) styleClasses.add(BASE_CLASSES[base]);
+        for (int i = 2; i < FLAG_CLASSES.length; i++) {
+            if ((flags & 1 << i) != 0 && !styleClasses.contains(FLAG_CLASSES[i])) styleClasses.add(FLAG_CLASSES[i]);
+        }
+        return Collections.unmodifiableList(styleClasses);
+    }
+}
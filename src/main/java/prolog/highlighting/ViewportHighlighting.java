@@ -0,0 +1,151 @@
+package prolog.highlighting;
+
+import javafx.application.Platform;
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.StyleSpans;
+
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Подсветка больших документов начиная с видимой части.
+ * <p>
+ * Пока вычисляется подсветка всего документа, видимые абзацы сразу подсвечиваются лексером.
+ * Готовая разметка применяется к редактору частями: сначала часть, видимая в окне редактора,
+ * затем остальные части по мере удаления от неё. Между частями поток JavaFX обрабатывает ввод пользователя.
+ * Все методы вызываются из потока JavaFX.
+ */
+public class ViewportHighlighting {
+    /**
+     * Документы не длиннее этого количества символов подсвечиваются целиком за один раз
+     */
+    private static final int LARGE_DOCUMENT_LENGTH = 256 * 1024;
+
+    /**
+     * Количество символов разметки, применяемых к редактору за один раз
+     */
+    private static final int CHUNK_LENGTH = 64 * 1024;
+
+    private final CodeArea codeArea;
+
+    /**
+     * Слой стилей, накладываемый на применяемую разметку, или {@code null}
+     */
+    private StyleLayer layer;
+
+    /**
+     * Номер текущего применения разметки. Применение прекращается, когда номер меняется.
+     */
+    private long generation;
+
+    /**
+     * Применение разметки не завершено
+     */
+    private boolean applying;
+
+    public ViewportHighlighting(CodeArea codeArea) {
+        this.codeArea = codeArea;
+    }
+
+    public void setLayer(StyleLayer layer) {
+        this.layer = layer;
+    }
+
+    /**
+     * @return {@code true} если документ такой длины следует подсвечивать начиная с видимой части
+     */
+    public static boolean isLarge(int length) {
+        return length > LARGE_DOCUMENT_LENGTH;
+    }
+
+    /**
+     * Подсвечивает видимые абзацы лексером, не дожидаясь подсветки всего документа.
+     * Разбор начинается с первого видимого абзаца, поэтому до применения полной разметки
+     * подсветка многострочных комментариев может быть неточной.
+     */
+    public void previewVisible() {
+        int[] visible = visibleRange();
+        if (visible == null || visible[0] == visible[1]) return;
+        String text = codeArea.getText(visible[0], visible[1]);
+        StyleSpans<Collection<String>> styleSpans = new LexerHighlighting().computeHighlightingFull(text);
+        if (styleSpans != null) StyleSpansDiff.apply(codeArea, visible[0], withLayer(visible[0], styleSpans));
+    }
+
+    /**
+     * Применяет разметку к редактору. Разметка большого участка применяется частями, начиная с видимой части.
+     * В редактор передаются только участки, стили которых отличаются от уже применённых.
+     *
+     * @param start      Индекс начала участка текста
+     * @param styleSpans Разметка участка
+     */
+    public void apply(int start, StyleSpans<Collection<String>> styleSpans) {
+        long current = ++generation;
+        styleSpans = withLayer(start, styleSpans);
+        if (styleSpans.length() <= CHUNK_LENGTH) {
+            applying = false;
+            StyleSpansDiff.apply(codeArea, start, styleSpans);
+            return;
+        }
+        applying = true;
+        int chunks = (styleSpans.length() + CHUNK_LENGTH - 1) / CHUNK_LENGTH;
+        applyNextChunk(current, start, styleSpans, new BitSet(chunks), chunks);
+    }
+
+    /**
+     * Прекращает применение разметки, например, при изменении текста.
+     *
+     * @return {@code true} если часть разметки осталась не применённой
+     */
+    public boolean cancel() {
+        generation++;
+        boolean interrupted = applying;
+        applying = false;
+        return interrupted;
+    }
+
+    private void applyNextChunk(long current, int start, StyleSpans<Collection<String>> styleSpans, BitSet applied, int chunks) {
+        if (generation != current) return;
+        int chunk = nearestChunk(start, applied, chunks);
+        if (chunk < 0) {
+            applying = false;
+            return;
+        }
+        int from = chunk * CHUNK_LENGTH;
+        int to = Math.min(from + CHUNK_LENGTH, styleSpans.length());
+        StyleSpansDiff.apply(codeArea, start + from, styleSpans.subView(from, to));
+        applied.set(chunk);
+        Platform.runLater(() -> applyNextChunk(current, start, styleSpans, applied, chunks));
+    }
+
+    /**
+     * @return Номер ещё не применённой части, ближайшей к видимой части документа, или {@code -1} если все части применены
+     */
+    private int nearestChunk(int start, BitSet applied, int chunks) {
+        int[] visible = visibleRange();
+        int target = visible == null ? 0 : (visible[0] - start) / CHUNK_LENGTH;
+        target = Math.max(0, Math.min(target, chunks - 1));
+        for (int distance = 0; distance < chunks; distance++) {
+            int after = target + distance;
+            if (after < chunks && !applied.get(after)) return after;
+            int before = target - distance;
+            if (before >= 0 && !applied.get(before)) return before;
+        }
+        return -1;
+    }
+
+    private StyleSpans<Collection<String>> withLayer(int start, StyleSpans<Collection<String>> styleSpans) {
+        return layer == null ? styleSpans : layer.overlay(start, styleSpans);
+    }
+
+    /**
+     * @return Индексы начала и конца видимой части текста, или {@code null} если абзацы ещё не отображены
+     */
+    private int[] visibleRange() {
+        if (codeArea.getVisibleParagraphs().isEmpty()) return null;
+        int first = codeArea.firstVisibleParToAllParIndex();
+        int last = codeArea.lastVisibleParToAllParIndex();
+        int from = codeArea.getAbsolutePosition(first, 0);
+        int to = codeArea.getAbsolutePosition(last, codeArea.getParagraphLength(last));
+        return new int[]{from, to};
+    }
+}
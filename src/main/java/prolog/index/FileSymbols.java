@@ -0,0 +1,39 @@
+package prolog.index;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Имена, найденные в одном файле, и файлы, подключённые в нём через include
+ */
+public final class FileSymbols {
+    public final Path file;
+    /**
+     * Время изменения файла, для которого построен список
+     */
+    public final long lastModified;
+    /**
+     * Размер файла, для которого построен список
+     */
+    public final long size;
+    /**
+     * Пути подключённых файлов в том виде, в котором они записаны в тексте
+     */
+    public final List<String> includes;
+    public final List<SymbolEntry> entries;
+
+    public FileSymbols(Path file, long lastModified, long size, List<String> includes, List<SymbolEntry> entries) {
+        this.file = file;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.includes = includes;
+        this.entries = entries;
+    }
+
+    /**
+     * @return {@code true} если список построен для файла с такими временем изменения и размером
+     */
+    public boolean isUpToDate(long lastModified, long size) {
+        return this.lastModified == lastModified && this.size == size;
+    }
+}
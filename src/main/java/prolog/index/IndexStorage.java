@@ -0,0 +1,144 @@
+package prolog.index;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Хранение индекса имён на диске.
+ * <p>
+ * Индекс записывается в двоичном виде: для каждого файла записываются путь, время изменения, размер,
+ * подключённые файлы, таблица имён и вхождения, ссылающиеся на имена по номеру.
+ * При запуске файл индекса читается в память целиком и разбирается без построчного чтения,
+ * после чего повторно индексируются только изменившиеся файлы.
+ */
+public final class IndexStorage {
+    private static final int MAGIC = 0x50494458;
+    /**
+     * Версия 2: позиции считаются в тексте с переводами строк, заменёнными как в редакторе
+     */
+    private static final int VERSION = 2;
+
+    private IndexStorage() {
+    }
+
+    /**
+     * Читает индекс из файла
+     *
+     * @param indexFile Файл индекса
+     * @return Имена файлов по путям. Если файла индекса нет или он повреждён, возвращается пустой индекс.
+     */
+    public static Map<Path, FileSymbols> load(Path indexFile) {
+        Map<Path, FileSymbols> files = new HashMap<>();
+        if (!Files.isRegularFile(indexFile)) return files;
+        try {
+            // Файл индекса не отображается в память: отображение удерживает файл до сборки мусора,
+            // и на Windows замена индекса при сохранении не выполнялась бы
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return files;
+            int fileCount = buffer.getInt();
+            for (int i = 0; i < fileCount; i++) {
+                FileSymbols symbols = readFile(buffer);
+                files.put(symbols.file, symbols);
+            }
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException
+                | IllegalArgumentException e) {
+            files.clear();
+        }
+        return files;
+    }
+
+    /**
+     * Записывает индекс во временный файл и заменяет им файл индекса
+     *
+     * @param indexFile Файл индекса
+     * @param files     Имена всех проиндексированных файлов
+     */
+    public static void save(Path indexFile, Collection<FileSymbols> files) throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(files.size());
+            for (FileSymbols symbols : files) {
+                writeFile(out, symbols);
+            }
+        }
+        try {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeFile(DataOutputStream out, FileSymbols symbols) throws IOException {
+        writeString(out, symbols.file.toString());
+        out.writeLong(symbols.lastModified);
+        out.writeLong(symbols.size);
+        out.writeInt(symbols.includes.size());
+        for (String include : symbols.includes) {
+            writeString(out, include);
+        }
+
+        Map<String, Integer> names = new LinkedHashMap<>();
+        for (SymbolEntry entry : symbols.entries) {
+            names.putIfAbsent(entry.name, names.size());
+        }
+        out.writeInt(names.size());
+        for (String name : names.keySet()) {
+            writeString(out, name);
+        }
+        out.writeInt(symbols.entries.size());
+        for (SymbolEntry entry : symbols.entries) {
+            out.writeInt(names.get(entry.name));
+            out.writeByte(entry.kind.ordinal());
+            out.writeInt(entry.offset);
+            out.writeInt(entry.line);
+        }
+    }
+
+    private static FileSymbols readFile(ByteBuffer buffer) {
+        Path file = Paths.get(readString(buffer));
+        long lastModified = buffer.getLong();
+        long size = buffer.getLong();
+        int includeCount = buffer.getInt();
+        List<String> includes = new ArrayList<>(includeCount);
+        for (int i = 0; i < includeCount; i++) {
+            includes.add(readString(buffer));
+        }
+
+        String[] names = new String[buffer.getInt()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = readString(buffer);
+        }
+        SymbolKind[] kinds = SymbolKind.values();
+        int entryCount = buffer.getInt();
+        List<SymbolEntry> entries = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            String name = names[buffer.getInt()];
+            SymbolKind kind = kinds[buffer.get()];
+            int offset = buffer.getInt();
+            int line = buffer.getInt();
+            entries.add(new SymbolEntry(file, name, kind, offset, line));
+        }
+        return new FileSymbols(file, lastModified, size, includes, entries);
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) throw new IllegalArgumentException("Bad string length " + length);
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
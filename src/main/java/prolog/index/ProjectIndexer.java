@@ -0,0 +1,240 @@
+package prolog.index;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фоновая индексация имён во всех файлах проекта.
+ * <p>
+ * Индексируются файлы {@code .pro} в каталоге проекта и все файлы, подключённые из них через include.
+ * При запуске индекс читается с диска, и заново разбираются только файлы, изменившиеся с момента сохранения индекса.
+ * Затем каталоги проиндексированных файлов отслеживаются, и изменённые файлы индексируются повторно.
+ * Индексация выполняется в отдельном потоке, индекс сохраняется на диск после каждой порции изменений.
+ * Файлы, которые удалены или больше не подключаются ни из одного файла проекта, удаляются из индекса.
+ * <p>
+ * Индекс хранится не в каталоге проекта, а в каталоге кэша пользователя, в отдельном файле для каждого проекта.
+ */
+public class ProjectIndexer {
+    /**
+     * Каталог индексов всех проектов в домашнем каталоге пользователя
+     */
+    private static final String CACHE_DIR = ".cache/prolog-ide/index";
+
+    private static final String SOURCE_EXTENSION = ".pro";
+
+    /**
+     * Время ожидания следующих изменений файлов, чтобы проиндексировать их одной порцией
+     */
+    private static final long COALESCE_MILLIS = 200;
+
+    private final Path root;
+    private final Path indexFile;
+    private final SymbolIndex index = new SymbolIndex();
+    private final Thread thread;
+    private final Set<Path> watchedDirs = new HashSet<>();
+    private volatile WatchService watchService;
+    private volatile boolean closed;
+
+    /**
+     * @param root Каталог проекта
+     */
+    public ProjectIndexer(Path root) {
+        this.root = root.toAbsolutePath().normalize();
+        this.indexFile = indexFile(this.root);
+        thread = new Thread(this::run, "Indexing");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * @return Файл индекса проекта. Имя файла строится по пути к каталогу проекта.
+     */
+    private static Path indexFile(Path root) {
+        String name = root.getFileName() == null ? "root" : root.getFileName().toString();
+        String hash = Integer.toHexString(root.toString().hashCode());
+        return Paths.get(System.getProperty("user.home")).resolve(CACHE_DIR).resolve(name + "-" + hash + ".index");
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /**
+     * @return Индекс имён. Пока идёт первая индексация, индекс может быть неполным.
+     */
+    public SymbolIndex index() {
+        return index;
+    }
+
+    public void close() {
+        closed = true;
+        thread.interrupt();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            watchService = null;
+        }
+        Map<Path, FileSymbols> stored = IndexStorage.load(indexFile);
+        // Сохранённый индекс используется только как кэш: индексируются исходные файлы проекта
+        // и подключённые в них файлы, поэтому файлы, которые больше не нужны, в индекс не попадают
+        boolean changed = indexAll(new ArrayDeque<>(sources()), stored) || stored.size() != index.files().size();
+        if (changed) save();
+
+        while (!closed && watchService != null) {
+            Set<Path> changedFiles = new LinkedHashSet<>();
+            try {
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    collectChanges(key, changedFiles);
+                    key = watchService.poll(COALESCE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            boolean indexChanged = indexAll(new ArrayDeque<>(changedFiles), Collections.emptyMap());
+            if (prune() || indexChanged) save();
+        }
+    }
+
+    private void collectChanges(WatchKey key, Set<Path> changedFiles) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                for (FileSymbols symbols : index.files()) {
+                    if (symbols.file.startsWith(dir)) changedFiles.add(symbols.file);
+                }
+                continue;
+            }
+            Path file = dir.resolve((Path) event.context()).normalize();
+            boolean source = dir.equals(root) && file.toString().endsWith(SOURCE_EXTENSION);
+            if (source || index.get(file) != null) changedFiles.add(file);
+        }
+        key.reset();
+    }
+
+    /**
+     * Индексирует файлы из очереди и все подключённые в них файлы
+     *
+     * @param queue  Файлы для индексации
+     * @param stored Имена файлов, прочитанные из сохранённого индекса
+     * @return {@code true} если индекс изменился
+     */
+    private boolean indexAll(Deque<Path> queue, Map<Path, FileSymbols> stored) {
+        boolean changed = false;
+        Set<Path> visited = new HashSet<>();
+        while (!queue.isEmpty() && !closed) {
+            Path file = queue.poll();
+            if (!visited.add(file)) continue;
+            if (!Files.isRegularFile(file)) {
+                if (index.get(file) != null) {
+                    index.remove(file);
+                    changed = true;
+                }
+                continue;
+            }
+            watch(file.getParent());
+            FileSymbols symbols;
+            try {
+                long lastModified = Files.getLastModifiedTime(file).toMillis();
+                long size = Files.size(file);
+                FileSymbols cached = stored.get(file);
+                FileSymbols current = index.get(file);
+                if (cached != null && cached.isUpToDate(lastModified, size)) {
+                    symbols = cached;
+                } else if (current != null && current.isUpToDate(lastModified, size)) {
+                    symbols = current;
+                } else {
+                    String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+                    symbols = SymbolScanner.scan(file, lastModified, size, text);
+                    changed = true;
+                }
+            } catch (IOException e) {
+                // Файл, который не удалось прочитать, не должен оставаться в индексе с устаревшими именами
+                if (index.get(file) != null) {
+                    index.remove(file);
+                    changed = true;
+                }
+                continue;
+            }
+            if (index.get(file) != symbols) index.put(symbols);
+            for (String include : symbols.includes) {
+                try {
+                    queue.add(file.resolveSibling(include).toAbsolutePath().normalize());
+                } catch (InvalidPathException ignored) {
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @return Исходные файлы в каталоге проекта
+     */
+    private List<Path> sources() {
+        List<Path> sources = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "*" + SOURCE_EXTENSION)) {
+            for (Path source : files) sources.add(source.toAbsolutePath().normalize());
+        } catch (IOException ignored) {
+        }
+        return sources;
+    }
+
+    /**
+     * Удаляет из индекса файлы, которые не являются исходными файлами проекта и не подключаются из них
+     *
+     * @return {@code true} если индекс изменился
+     */
+    private boolean prune() {
+        Set<Path> reachable = new HashSet<>();
+        Deque<Path> queue = new ArrayDeque<>(sources());
+        while (!queue.isEmpty()) {
+            Path file = queue.poll();
+            if (!reachable.add(file)) continue;
+            FileSymbols symbols = index.get(file);
+            if (symbols == null) continue;
+            for (String include : symbols.includes) {
+                try {
+                    queue.add(file.resolveSibling(include).toAbsolutePath().normalize());
+                } catch (InvalidPathException ignored) {
+                }
+            }
+        }
+        boolean changed = false;
+        for (FileSymbols symbols : index.files()) {
+            if (!reachable.contains(symbols.file)) {
+                index.remove(symbols.file);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void watch(Path dir) {
+        if (watchService == null || dir == null || !watchedDirs.add(dir)) return;
+        try {
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            watchedDirs.remove(dir);
+        }
+    }
+
+    private void save() {
+        try {
+            IndexStorage.save(indexFile, index.files());
+        } catch (IOException ignored) {
+            // Индекс будет построен заново при следующем запуске
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package prolog.index;
+
+import java.nio.file.Path;
+
+/**
+ * Вхождение имени в файл проекта
+ */
+public final class SymbolEntry {
+    public final Path file;
+    public final String name;
+    public final SymbolKind kind;
+    /**
+     * Смещение имени от начала файла
+     */
+    public final int offset;
+    /**
+     * Номер строки, начиная с нуля
+     */
+    public final int line;
+
+    public SymbolEntry(Path file, String name, SymbolKind kind, int offset, int line) {
+        this.file = file;
+        this.name = name;
+        this.kind = kind;
+        this.offset = offset;
+        this.line = line;
+    }
+
+    public int length() {
+        return name.length();
+    }
+
+    @Override
+    public String toString() {
+        return file.getFileName() + ":" + (line + 1) + " " + kind.getTitle() + " " + name;
+    }
+}
@@ -0,0 +1,67 @@
+package prolog.index;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Индекс имён всех файлов проекта.
+ * <p>
+ * Обновляется потоком индексации по одному файлу, запросы выполняются из потока JavaFX.
+ */
+public class SymbolIndex {
+    private final Map<Path, FileSymbols> files = new HashMap<>();
+    private final Map<String, List<SymbolEntry>> byName = new HashMap<>();
+
+    /**
+     * @param name Имя
+     * @return Все вхождения имени: сначала объявления, затем реализации и использования, в порядке следования в файлах
+     */
+    public synchronized List<SymbolEntry> find(String name) {
+        List<SymbolEntry> entries = new ArrayList<>(byName.getOrDefault(name, Collections.emptyList()));
+        entries.sort(Comparator.comparing((SymbolEntry entry) -> entry.kind)
+                .thenComparing(entry -> entry.file.toString())
+                .thenComparingInt(entry -> entry.offset));
+        return entries;
+    }
+
+    /**
+     * @return Список имён файла, или {@code null} если файл не проиндексирован
+     */
+    public synchronized FileSymbols get(Path file) {
+        return files.get(file);
+    }
+
+    /**
+     * @return Списки имён всех проиндексированных файлов
+     */
+    public synchronized List<FileSymbols> files() {
+        return new ArrayList<>(files.values());
+    }
+
+    /**
+     * Заменяет имена файла
+     */
+    public synchronized void put(FileSymbols symbols) {
+        remove(symbols.file);
+        files.put(symbols.file, symbols);
+        for (SymbolEntry entry : symbols.entries) {
+            byName.computeIfAbsent(entry.name, name -> new ArrayList<>()).add(entry);
+        }
+    }
+
+    /**
+     * Удаляет имена файла
+     */
+    public synchronized void remove(Path file) {
+        FileSymbols old = files.remove(file);
+        if (old == null) return;
+        Set<String> names = new HashSet<>();
+        for (SymbolEntry entry : old.entries) names.add(entry.name);
+        for (String name : names) {
+            List<SymbolEntry> entries = byName.get(name);
+            if (entries == null) continue;
+            entries.removeIf(e -> e.file.equals(file));
+            if (entries.isEmpty()) byName.remove(name);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package prolog.index;
+
+/**
+ * Вид вхождения имени в текст программы
+ */
+public enum SymbolKind {
+    /**
+     * Объявление домена в разделе domains
+     */
+    DOMAIN("domain"),
+    /**
+     * Объявление предиката в разделе predicates или database
+     */
+    PREDICATE("predicate"),
+    /**
+     * Заголовок правила или факта в разделе clauses
+     */
+    CLAUSE("clause"),
+    /**
+     * Использование предиката или домена
+     */
+    USAGE("usage");
+
+    private final String title;
+
+    SymbolKind(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * @return {@code true} если вхождение является объявлением
+     */
+    public boolean isDeclaration() {
+        return this == DOMAIN || this == PREDICATE;
+    }
+}
@@ -0,0 +1,106 @@
+package prolog.index;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.input.KeyCode;
+import javafx.stage.Modality;
+import javafx.stage.Stage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Окно со списком вхождений имени во все файлы проекта.
+ * Строки файлов с найденными вхождениями читаются с диска в фоновом потоке,
+ * и текст строки добавляется к результату после чтения файла.
+ */
+public class SymbolResultsWindow {
+    private final Stage stage = new Stage();
+    private final ListView<SymbolEntry> listView = new ListView<>();
+    private final Consumer<SymbolEntry> onSelect;
+
+    /**
+     * Строки прочитанных файлов. Используется в потоке JavaFX.
+     */
+    private final Map<Path, List<String>> lines = new HashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param title    Заголовок окна
+     * @param onSelect Переход к выбранному вхождению
+     */
+    public SymbolResultsWindow(String title, Consumer<SymbolEntry> onSelect) {
+        this.onSelect = onSelect;
+        stage.setTitle(title);
+        stage.initModality(Modality.NONE);
+        listView.setCellFactory(view -> new EntryCell());
+        listView.setOnMouseClicked(event -> goToSelected());
+        listView.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.ENTER) goToSelected();
+        });
+        stage.setScene(new Scene(listView, 500, 250));
+    }
+
+    public void show(List<SymbolEntry> entries) {
+        listView.getItems().setAll(entries);
+        stage.show();
+        Set<Path> files = new LinkedHashSet<>();
+        for (SymbolEntry entry : entries) files.add(entry.file);
+        Thread loader = new Thread(() -> loadLines(files), "Symbol previews");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public void close() {
+        closed = true;
+        stage.close();
+    }
+
+    private void loadLines(Collection<Path> files) {
+        for (Path file : files) {
+            if (closed) return;
+            List<String> fileLines;
+            try {
+                fileLines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                fileLines = Collections.emptyList();
+            }
+            List<String> loaded = fileLines;
+            Platform.runLater(() -> {
+                lines.put(file, loaded);
+                listView.refresh();
+            });
+        }
+    }
+
+    private void goToSelected() {
+        SymbolEntry entry = listView.getSelectionModel().getSelectedItem();
+        if (entry != null) onSelect.accept(entry);
+    }
+
+    /**
+     * @return Текст строки с вхождением, или пустая строка, если файл ещё не прочитан
+     */
+    private String lineText(SymbolEntry entry) {
+        List<String> fileLines = lines.get(entry.file);
+        return fileLines != null && entry.line < fileLines.size() ? fileLines.get(entry.line).trim() : "";
+    }
+
+    private class EntryCell extends ListCell<SymbolEntry> {
+        @Override
+        protected void updateItem(SymbolEntry item, boolean empty) {
+            super.updateItem(item, empty);
+            if (empty || item == null) {
+                setText(null);
+                return;
+            }
+            setText(item.file.getFileName() + ":" + (item.line + 1) + " [" + item.kind.getTitle() + "] " + lineText(item));
+        }
+    }
+}
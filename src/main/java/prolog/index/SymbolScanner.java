@@ -0,0 +1,159 @@
+package prolog.index;
+
+import prolog.LineEndings;
+import ru.prolog.syntaxmodel.TokenType;
+import ru.prolog.syntaxmodel.recognizers.Lexer;
+import ru.prolog.syntaxmodel.tree.Token;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Поиск объявлений, реализаций и использований имён в тексте файла.
+ * <p>
+ * Файл разбирается только лексером: вид вхождения имени определяется по разделу программы,
+ * вложенности в скобки и соседним лексемам. Это быстрее построения дерева разбора и не требует
+ * семантического анализа, поэтому весь проект индексируется за время, сравнимое со временем чтения файлов.
+ */
+public final class SymbolScanner {
+    private SymbolScanner() {
+    }
+
+    /**
+     * Значимая лексема с позицией в тексте
+     */
+    private static final class Lexeme {
+        final TokenType type;
+        final String text;
+        final int offset;
+        final int line;
+
+        Lexeme(TokenType type, String text, int offset, int line) {
+            this.type = type;
+            this.text = text;
+            this.offset = offset;
+            this.line = line;
+        }
+    }
+
+    /**
+     * @param file         Путь к файлу
+     * @param lastModified Время изменения файла
+     * @param size         Размер файла
+     * @param text         Текст файла
+     * @return Имена, найденные в файле. Позиции считаются в тексте с переводами строк, как в редакторе.
+     */
+    public static FileSymbols scan(Path file, long lastModified, long size, String text) {
+        List<Lexeme> lexemes = lexemes(LineEndings.normalize(text));
+        List<String> includes = new ArrayList<>();
+        List<SymbolEntry> entries = new ArrayList<>();
+
+        TokenType section = null;
+        int depth = 0;
+        // Начало предложения в разделе clauses
+        boolean statementStart = true;
+        // Левая часть объявления домена
+        boolean domainLeftSide = true;
+        for (int i = 0; i < lexemes.size(); i++) {
+            Lexeme lexeme = lexemes.get(i);
+            Lexeme prev = i > 0 ? lexemes.get(i - 1) : null;
+            Lexeme next = i + 1 < lexemes.size() ? lexemes.get(i + 1) : null;
+            if (prev != null && lexeme.line != prev.line && depth == 0) domainLeftSide = true;
+            switch (lexeme.type) {
+                case DOMAINS_KEYWORD:
+                case DATABASE_KEYWORD:
+                case PREDICATES_KEYWORD:
+                case CLAUSES_KEYWORD:
+                case GOAL_KEYWORD:
+                    section = lexeme.type;
+                    depth = 0;
+                    statementStart = true;
+                    domainLeftSide = true;
+                    continue;
+                case INCLUDE_KEYWORD:
+                    if (next != null && next.type == TokenType.STRING) includes.add(unquote(next.text));
+                    continue;
+                case LB:
+                case LSQB:
+                    depth++;
+                    break;
+                case RB:
+                case RSQB:
+                    depth = Math.max(0, depth - 1);
+                    break;
+                case DOT:
+                    statementStart = true;
+                    continue;
+                case EQUALS:
+                    if (depth == 0) domainLeftSide = false;
+                    break;
+                case SYMBOL:
+                    SymbolKind kind = symbolKind(section, lexeme, prev, next, depth, statementStart, domainLeftSide);
+                    if (kind != null) entries.add(new SymbolEntry(file, lexeme.text, kind, lexeme.offset, lexeme.line));
+                    break;
+                default:
+                    break;
+            }
+            statementStart = false;
+        }
+        return new FileSymbols(file, lastModified, size, includes, entries);
+    }
+
+    private static SymbolKind symbolKind(TokenType section, Lexeme symbol, Lexeme prev, Lexeme next, int depth,
+                                         boolean statementStart, boolean domainLeftSide) {
+        if (section == null) return null;
+        boolean call = next != null && next.type == TokenType.LB;
+        switch (section) {
+            case DOMAINS_KEYWORD:
+                if (depth == 0 && domainLeftSide) return SymbolKind.DOMAIN;
+                // Имена функторов в описании составного домена не индексируются
+                return call ? null : SymbolKind.USAGE;
+            case DATABASE_KEYWORD:
+                // Имя раздела database - name
+                if (prev != null && prev.type == TokenType.MINUS && depth == 0) return null;
+            case PREDICATES_KEYWORD:
+                if (depth > 0) return SymbolKind.USAGE;
+                // Модификаторы determ и nondeterm стоят перед именем предиката
+                if (next != null && next.type == TokenType.SYMBOL && next.line == symbol.line) return null;
+                return SymbolKind.PREDICATE;
+            case CLAUSES_KEYWORD:
+                if (statementStart && depth == 0) return SymbolKind.CLAUSE;
+                // Внутри скобок имя без аргументов является значением, а не вызовом
+                return call || depth == 0 ? SymbolKind.USAGE : null;
+            case GOAL_KEYWORD:
+                return call || depth == 0 ? SymbolKind.USAGE : null;
+            default:
+                return null;
+        }
+    }
+
+    private static List<Lexeme> lexemes(String text) {
+        List<Lexeme> lexemes = new ArrayList<>();
+        Lexer lexer = new Lexer(text);
+        int offset = 0;
+        int line = 0;
+        while (!lexer.isEnd()) {
+            Token token = lexer.nextToken();
+            if (token == null) break;
+            String tokenText = token.getText();
+            TokenType type = token.getTokenType();
+            if (type != null && type != TokenType.SINGLE_COMMENT && type != TokenType.MULTILINE_COMMENT
+                    && !tokenText.trim().isEmpty()) {
+                lexemes.add(new Lexeme(type, tokenText, offset, line));
+            }
+            offset += tokenText.length();
+            for (int i = 0; i < tokenText.length(); i++) {
+                if (tokenText.charAt(i) == '\n') line++;
+            }
+        }
+        return lexemes;
+    }
+
+    private static String unquote(String string) {
+        if (string.length() >= 2 && string.charAt(0) == '"' && string.charAt(string.length() - 1) == '"') {
+            return string.substring(1, string.length() - 1);
+        }
+        return string;
+    }
+}
@@ -0,0 +1,92 @@
+package prolog.latency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Гистограмма длительностей с логарифмическими интервалами.
+ * <p>
+ * Длительности хранятся в микросекундах. Каждый интервал от 2^k до 2^(k+1) делится на 8 равных частей,
+ * поэтому погрешность процентилей не превышает 12%. Запись не выделяет память и может выполняться
+ * из нескольких потоков одновременно.
+ */
+public class LatencyHistogram {
+    /**
+     * Количество частей, на которые делится каждый интервал между степенями двойки
+     */
+    private static final int SUB_BUCKETS = 8;
+
+    /**
+     * Длительности меньше этой записываются с точностью до микросекунды
+     */
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Записывает длительность
+     *
+     * @param nanos Длительность в наносекундах
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos))));
+    }
+
+    /**
+     * @return Количество записанных длительностей
+     */
+    public long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += counts.get(i);
+        return count;
+    }
+
+    /**
+     * @param percentile Процентиль от 0 до 100
+     * @return Длительность в микросекундах, которую не превышает указанная доля записанных длительностей,
+     * или {@code 0} если длительности не записывались.
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return middle(i);
+        }
+        return middle(BUCKETS - 1);
+    }
+
+    /**
+     * Удаляет все записанные длительности
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR_LIMIT) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = exponent - 3;
+        // Старшие 4 бита длительности находятся в пределах от 8 до 15
+        return shift * SUB_BUCKETS + (int) (micros >>> shift);
+    }
+
+    /**
+     * @return Середина интервала в микросекундах
+     */
+    private static long middle(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + (1L << shift) / 2;
+    }
+}
@@ -0,0 +1,75 @@
+package prolog.latency;
+
+import java.util.StringJoiner;
+
+/**
+ * Этапы подсветки и компиляции, длительности которых замеряются.
+ * <p>
+ * Каждый этап накапливает длительности в собственной гистограмме. Замер выполняется так:
+ * <pre>{@code
+ * long start = System.nanoTime();
+ * ...
+ * Phase.PARSING.record(start);
+ * }</pre>
+ */
+public enum Phase {
+    /**
+     * Время от изменения текста до применения подсветки в редакторе
+     */
+    KEYSTROKE_TO_HIGHLIGHT("Keystroke"),
+    LEXING("Lexer"),
+    PARSING("Parser"),
+    SEMANTIC_ANALYSIS("Semantic"),
+    SPAN_BUILDING("Spans"),
+    APPLYING_STYLES("Apply"),
+    COMPILATION("Compile"),
+    VALIDATION("Validate");
+
+    private final String title;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    Phase(String title) {
+        this.title = title;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    /**
+     * Записывает длительность этапа, начавшегося в указанный момент
+     *
+     * @param startNanos Значение {@link System#nanoTime()} в начале этапа
+     */
+    public void record(long startNanos) {
+        histogram.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Удаляет длительности всех этапов
+     */
+    public static void resetAll() {
+        for (Phase phase : values()) phase.histogram.reset();
+    }
+
+    /**
+     * @return Строка с 50-м и 99-м процентилями длительностей в миллисекундах для всех этапов, которые замерялись
+     */
+    public static String summary() {
+        StringJoiner joiner = new StringJoiner("  ");
+        for (Phase phase : values()) {
+            if (phase.histogram.count() == 0) continue;
+            joiner.add(String.format("%s p50 %s p99 %s", phase.title,
+                    millis(phase.histogram.percentile(50)), millis(phase.histogram.percentile(99))));
+        }
+        return joiner.toString();
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.1fms", micros / 1000.0);
+    }
+}
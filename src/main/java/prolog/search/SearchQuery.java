@@ -0,0 +1,58 @@
+package prolog.search;
+
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Параметры поиска текста
+ */
+public final class SearchQuery {
+    public final String text;
+    public final boolean matchCase;
+    public final boolean regex;
+    public final boolean wholeWord;
+
+    public SearchQuery(String text, boolean matchCase, boolean regex, boolean wholeWord) {
+        this.text = text;
+        this.matchCase = matchCase;
+        this.regex = regex;
+        this.wholeWord = wholeWord;
+    }
+
+    public boolean isEmpty() {
+        return text.isEmpty();
+    }
+
+    /**
+     * Строит регулярное выражение для поиска. Поиск без учёта регистра выполняется флагами выражения,
+     * поэтому ни текст документа, ни строка поиска не копируются в нижнем регистре.
+     *
+     * @return Регулярное выражение
+     * @throws PatternSyntaxException если строка поиска не является правильным регулярным выражением
+     */
+    public Pattern toPattern() {
+        String expression = regex ? text : Pattern.quote(text);
+        if (wholeWord) expression = "(?<![\\w])(?:" + expression + ")(?![\\w])";
+        int flags = matchCase ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        if (wholeWord) flags |= Pattern.UNICODE_CHARACTER_CLASS;
+        return Pattern.compile(expression, flags);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SearchQuery)) return false;
+        SearchQuery that = (SearchQuery) o;
+        return matchCase == that.matchCase && regex == that.regex && wholeWord == that.wholeWord
+                && text.equals(that.text);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = text.hashCode();
+        result = 31 * result + (matchCase ? 1 : 0);
+        result = 31 * result + (regex ? 1 : 0);
+        result = 31 * result + (wholeWord ? 1 : 0);
+        return result;
+    }
+}
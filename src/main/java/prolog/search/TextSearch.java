@@ -0,0 +1,359 @@
+package prolog.search;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.scene.control.IndexRange;
+import javafx.util.Duration;
+import org.fxmisc.richtext.CodeArea;
+import org.fxmisc.richtext.model.PlainTextChange;
+import org.fxmisc.richtext.model.StyleSpans;
+import org.fxmisc.richtext.model.StyleSpansBuilder;
+import org.reactfx.Subscription;
+import prolog.DocumentSnapshot;
+import prolog.highlighting.StyleLayer;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Поиск всех совпадений в тексте редактора.
+ * <p>
+ * Все совпадения ищутся в фоновом потоке по снимку документа. Найденные совпадения хранятся упорядоченными,
+ * поэтому переход к следующему или предыдущему совпадению выполняется двоичным поиском без повторного поиска в тексте.
+ * Совпадения выделяются отдельным слоем стилей поверх подсветки синтаксиса.
+ * При изменении текста совпадения сдвигаются вместе с текстом, а после паузы в наборе поиск выполняется заново.
+ * Все методы, кроме поиска в фоновом потоке, вызываются из потока JavaFX.
+ */
+public class TextSearch implements StyleLayer {
+    public static final String MATCH_STYLE = "searchMatch";
+    private static final Collection<String> MATCH_STYLES = Collections.singletonList(MATCH_STYLE);
+
+    /**
+     * Максимальное количество запоминаемых совпадений
+     */
+    private static final int MAX_MATCHES = 10000;
+
+    /**
+     * Участки, разделённые меньшим количеством символов, перекрашиваются одним вызовом
+     */
+    private static final int RESTYLE_GAP = 1024;
+
+    private final CodeArea codeArea;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Номер текущего поиска. Результаты поиска с другим номером отбрасываются.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Пауза после изменения текста, после которой поиск выполняется заново
+     */
+    private final PauseTransition researchPause = new PauseTransition(Duration.millis(300));
+    private final Subscription changesSubscription;
+
+    private Pattern pattern;
+    private int[] starts = new int[0];
+    private int[] ends = new int[0];
+    private int count;
+    /**
+     * Количество совпадений превысило {@link #MAX_MATCHES}
+     */
+    private boolean truncated;
+    private boolean searching;
+
+    /**
+     * Направление перехода, запрошенного до завершения поиска, или {@code 0}
+     */
+    private int pendingStep;
+    private Runnable onUpdate = () -> {
+    };
+
+    public TextSearch(CodeArea codeArea) {
+        this.codeArea = codeArea;
+        changesSubscription = codeArea.multiPlainChanges().subscribe(this::textChanged);
+        researchPause.setOnFinished(event -> startSearch());
+    }
+
+    /**
+     * @param onUpdate Вызывается при изменении найденных совпадений или текущего совпадения
+     */
+    public void setOnUpdate(Runnable onUpdate) {
+        this.onUpdate = onUpdate;
+    }
+
+    /**
+     * Запускает поиск всех совпадений в фоновом потоке
+     *
+     * @param query Параметры поиска
+     * @throws PatternSyntaxException если строка поиска не является правильным регулярным выражением.
+     *                                В этом случае найденные ранее совпадения сохраняются.
+     */
+    public void search(SearchQuery query) {
+        Pattern newPattern = query.isEmpty() ? null : query.toPattern();
+        pattern = newPattern;
+        pendingStep = 0;
+        if (newPattern == null) {
+            clear();
+            return;
+        }
+        startSearch();
+    }
+
+    /**
+     * Убирает выделение совпадений и прекращает поиск
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        researchPause.stop();
+        pattern = null;
+        searching = false;
+        pendingStep = 0;
+        setMatches(new int[0], new int[0], 0, false);
+    }
+
+    /**
+     * Выделяет следующее совпадение после курсора
+     */
+    public void next() {
+        step(1);
+    }
+
+    /**
+     * Выделяет предыдущее совпадение перед курсором
+     */
+    public void previous() {
+        step(-1);
+    }
+
+    /**
+     * @return Описание состояния поиска для отображения пользователю
+     */
+    public String status() {
+        if (pattern == null) return "";
+        if (searching) return "Searching...";
+        if (count == 0) return "No matches";
+        String total = count + (truncated ? "+" : "");
+        int current = currentIndex();
+        return current < 0 ? total + " matches" : (current + 1) + " of " + total;
+    }
+
+    public void close() {
+        generation.incrementAndGet();
+        researchPause.stop();
+        changesSubscription.unsubscribe();
+        executor.shutdownNow();
+    }
+
+    @Override
+    public StyleSpans<Collection<String>> overlay(int start, StyleSpans<Collection<String>> styleSpans) {
+        int end = start + styleSpans.length();
+        int first = lowerBound(ends, count, start + 1);
+        if (styleSpans.length() == 0 || first == count || starts[first] >= end) return styleSpans;
+        StyleSpansBuilder<Collection<String>> builder = new StyleSpansBuilder<>();
+        int pos = start;
+        for (int i = first; i < count && starts[i] < end; i++) {
+            int matchStart = Math.max(starts[i], pos);
+            int matchEnd = Math.min(ends[i], end);
+            if (matchStart > pos) builder.add(Collections.emptyList(), matchStart - pos);
+            builder.add(MATCH_STYLES, matchEnd - matchStart);
+            pos = matchEnd;
+        }
+        if (pos < end) builder.add(Collections.emptyList(), end - pos);
+        return styleSpans.overlay(builder.create(), (style, match) -> {
+            if (match.isEmpty()) return style;
+            List<String> styles = new ArrayList<>(style);
+            styles.add(MATCH_STYLE);
+            return styles;
+        });
+    }
+
+    private void startSearch() {
+        long current = generation.incrementAndGet();
+        if (pattern == null) return;
+        searching = true;
+        onUpdate.run();
+        Pattern searchPattern = pattern;
+        DocumentSnapshot snapshot = DocumentSnapshot.of(codeArea);
+        executor.execute(() -> {
+            if (generation.get() != current) return;
+            int[] foundStarts = new int[16];
+            int[] foundEnds = new int[16];
+            int found = 0;
+            boolean more = false;
+            Matcher matcher = searchPattern.matcher(snapshot);
+            while (matcher.find()) {
+                if (matcher.end() == matcher.start()) continue;
+                if (found == MAX_MATCHES) {
+                    more = true;
+                    break;
+                }
+                if (found == foundStarts.length) {
+                    foundStarts = Arrays.copyOf(foundStarts, found * 2);
+                    foundEnds = Arrays.copyOf(foundEnds, found * 2);
+                }
+                foundStarts[found] = matcher.start();
+                foundEnds[found] = matcher.end();
+                found++;
+                if ((found & 1023) == 0 && generation.get() != current) return;
+            }
+            int[] resultStarts = foundStarts;
+            int[] resultEnds = foundEnds;
+            int resultCount = found;
+            boolean resultTruncated = more;
+            Platform.runLater(() -> {
+                if (generation.get() != current) return;
+                searching = false;
+                setMatches(resultStarts, resultEnds, resultCount, resultTruncated);
+                int step = pendingStep;
+                pendingStep = 0;
+                if (step != 0) step(step);
+            });
+        });
+    }
+
+    private void step(int direction) {
+        if (searching) {
+            pendingStep = direction;
+            return;
+        }
+        if (count == 0) return;
+        IndexRange selection = codeArea.getSelection();
+        int caret = codeArea.getCaretPosition();
+        int index;
+        if (direction > 0) {
+            int from = selection.getLength() > 0 ? selection.getStart() + 1 : caret;
+            index = lowerBound(starts, count, from);
+            if (index == count) index = 0;
+        } else {
+            int before = selection.getLength() > 0 ? selection.getStart() : caret;
+            index = lowerBound(starts, count, before) - 1;
+            if (index < 0) index = count - 1;
+        }
+        codeArea.selectRange(starts[index], ends[index]);
+        codeArea.requestFollowCaret();
+        onUpdate.run();
+    }
+
+    /**
+     * @return Номер совпадения, выделенного в редакторе, или {@code -1}
+     */
+    private int currentIndex() {
+        IndexRange selection = codeArea.getSelection();
+        int index = lowerBound(starts, count, selection.getStart());
+        return index < count && starts[index] == selection.getStart() && ends[index] == selection.getEnd() ? index : -1;
+    }
+
+    /**
+     * Сдвигает совпадения вместе с изменённым текстом. Совпадения, затронутые изменением, удаляются.
+     */
+    private void textChanged(List<PlainTextChange> changes) {
+        if (pattern == null && count == 0) return;
+        generation.incrementAndGet();
+        List<int[]> dropped = new ArrayList<>();
+        for (PlainTextChange change : changes) {
+            int position = change.getPosition();
+            int removalEnd = change.getRemovalEnd();
+            int delta = change.getNetLength();
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                if (ends[i] <= position) {
+                    starts[kept] = starts[i];
+                    ends[kept] = ends[i];
+                    kept++;
+                } else if (starts[i] >= removalEnd) {
+                    starts[kept] = starts[i] + delta;
+                    ends[kept] = ends[i] + delta;
+                    kept++;
+                } else {
+                    dropped.add(new int[]{Math.min(starts[i], position), Math.max(ends[i] + delta, change.getInsertionEnd())});
+                }
+            }
+            count = kept;
+        }
+        if (!dropped.isEmpty()) {
+            // Стили изменяются после того, как все слушатели получат изменение текста
+            Platform.runLater(() -> restyle(dropped));
+        }
+        if (pattern != null) {
+            searching = true;
+            researchPause.playFromStart();
+        }
+        onUpdate.run();
+    }
+
+    private void setMatches(int[] newStarts, int[] newEnds, int newCount, boolean newTruncated) {
+        int[] oldStarts = starts;
+        int[] oldEnds = ends;
+        int oldCount = count;
+        starts = newStarts;
+        ends = newEnds;
+        count = newCount;
+        truncated = newTruncated;
+        List<int[]> ranges = new ArrayList<>(oldCount + newCount);
+        for (int i = 0; i < oldCount; i++) ranges.add(new int[]{oldStarts[i], oldEnds[i]});
+        for (int i = 0; i < newCount; i++) ranges.add(new int[]{newStarts[i], newEnds[i]});
+        restyle(ranges);
+        onUpdate.run();
+    }
+
+    /**
+     * Заново накладывает слой совпадений на участки текста. Близкие участки объединяются,
+     * чтобы разметка редактора читалась и изменялась один раз для многих совпадений, а не для каждого.
+     */
+    private void restyle(List<int[]> ranges) {
+        ranges.sort(Comparator.comparingInt(range -> range[0]));
+        int from = -1;
+        int to = -1;
+        for (int[] range : ranges) {
+            if (from >= 0 && range[0] - to < RESTYLE_GAP) {
+                to = Math.max(to, range[1]);
+                continue;
+            }
+            if (from >= 0) restyle(from, to);
+            from = range[0];
+            to = range[1];
+        }
+        if (from >= 0) restyle(from, to);
+    }
+
+    /**
+     * Заново накладывает слой совпадений на текущую разметку участка текста
+     */
+    private void restyle(int from, int to) {
+        from = Math.min(from, codeArea.getLength());
+        to = Math.min(to, codeArea.getLength());
+        if (from >= to) return;
+        StyleSpans<Collection<String>> current = codeArea.getStyleSpans(from, to).mapStyles(style -> {
+            if (!style.contains(MATCH_STYLE)) return style;
+            List<String> styles = new ArrayList<>(style);
+            styles.remove(MATCH_STYLE);
+            return styles;
+        });
+        // Участок может содержать много совпадений, поэтому разметка применяется одним вызовом
+        codeArea.setStyleSpans(from, overlay(from, current));
+    }
+
+    /**
+     * @return Индекс первого элемента, не меньшего значения, среди первых {@code size} элементов упорядоченного массива
+     */
+    private static int lowerBound(int[] array, int size, int value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (array[middle] < value) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}